@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log in the Common Log Format, written off the request path. Workers
+ * copy each request into a slot of a preallocated ring buffer, claiming slots
+ * with a compare-and-set, and a background thread formats whole batches of
+ * slots and appends them to the log file, which is rotated by size. When the
+ * writer falls behind and the ring is full, records are dropped and counted
+ * instead of making the request wait.
+ */
+public final class AccessLog {
+
+  private static final int REQUEST_LINE_SIZE = 256;
+  private static final int MAX_BATCH = 512;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+  private static final DateTimeFormatter CLF_DATE = DateTimeFormatter
+      .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+  /**
+   * One request, every field is overwritten in place when the slot is reused.
+   */
+  private static final class Slot {
+
+    private InetAddress address;
+    private long time;
+    private final byte[] requestLine = new byte[REQUEST_LINE_SIZE];
+    private int requestLineLength;
+    private WebServer.ResponseStatusCode statusCode;
+    private long bytes;
+  }
+
+  private final Path file;
+  private final long maxFileSize;
+  private final int keepFiles;
+  private final Slot[] slots;
+  private final int mask;
+  // The sequence number each slot was last published with, -1 while empty.
+  private final AtomicLongArray published;
+  private final AtomicLong claimed = new AtomicLong();
+  private volatile long consumed;
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+  private FileChannel channel;
+  private Thread writer;
+  private volatile boolean running;
+
+  /**
+   * Constructor for the access log.
+   *
+   * @param file        The log file, rotated files get ".1", ".2", ... appended.
+   *
+   * @param capacity    The number of records the ring holds, a power of two.
+   *
+   * @param maxFileSize The size at which the file is rotated.
+   *
+   * @param keepFiles   The number of rotated files to keep.
+   */
+  public AccessLog(Path file, int capacity, long maxFileSize, int keepFiles) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two");
+    }
+    this.file = file;
+    this.maxFileSize = maxFileSize;
+    this.keepFiles = keepFiles;
+    this.slots = new Slot[capacity];
+    this.mask = capacity - 1;
+    this.published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+      published.set(i, -1);
+    }
+  }
+
+  /**
+   * Opens the log file and starts the writer thread.
+   *
+   * @throws IOException In case the file can't be opened.
+   */
+  public void start() throws IOException {
+    channel = open();
+    running = true;
+    writer = new Thread(this::drain, "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "access-log-shutdown"));
+  }
+
+  /**
+   * Records a request, never blocks and allocates nothing.
+   *
+   * @param address    The client address.
+   *
+   * @param request    The request, or null if it could not be parsed.
+   *
+   * @param statusCode The status code it was answered with.
+   *
+   * @param bytes      The size of the response body.
+   */
+  public void log(InetAddress address, HttpRequest request, WebServer.ResponseStatusCode statusCode,
+      long bytes) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= slots.length) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    int index = (int) sequence & mask;
+    Slot slot = slots[index];
+    slot.address = address;
+    slot.time = System.currentTimeMillis();
+    slot.requestLineLength = request != null ? request.copyRequestLine(slot.requestLine) : 0;
+    slot.statusCode = statusCode;
+    slot.bytes = bytes;
+    published.set(index, sequence);
+  }
+
+  public long getWritten() {
+    return written.sum();
+  }
+
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Stops the writer thread once everything logged so far is written.
+   */
+  public void stop() {
+    running = false;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+      try {
+        writer.join(TimeUnit.SECONDS.toMillis(2));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void drain() {
+    long next = 0;
+    while (true) {
+      int batch = 0;
+      while (batch < MAX_BATCH && published.get((int) next & mask) == next) {
+        Slot slot = slots[(int) next & mask];
+        if (out.remaining() < REQUEST_LINE_SIZE * 4 + 256) {
+          flush();
+        }
+        format(slot);
+        slot.address = null;
+        next++;
+        batch++;
+      }
+
+      if (batch > 0) {
+        consumed = next;
+        written.add(batch);
+        flush();
+      } else if (!running) {
+        break;
+      } else {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Appends one line: host ident authuser [date] "request line" status bytes
+   */
+  private void format(Slot slot) {
+    putAscii(slot.address != null ? slot.address.getHostAddress() : "-");
+    putAscii(" - - [");
+    putAscii(CLF_DATE.format(Instant.ofEpochMilli(slot.time)));
+    putAscii("] \"");
+    if (slot.requestLineLength == 0) {
+      out.put((byte) '-');
+    }
+    for (int i = 0; i < slot.requestLineLength; i++) {
+      byte b = slot.requestLine[i];
+      if (b < 0x20 || b == 0x7f || b == '"' || b == '\\') {
+        out.put((byte) '\\').put((byte) 'x').put(HEX[(b >> 4) & 0xf]).put(HEX[b & 0xf]);
+      } else {
+        out.put(b);
+      }
+    }
+    putAscii("\" ");
+    String name = slot.statusCode.name();
+    putAscii(name.substring(name.lastIndexOf('_') + 1));
+    out.put((byte) ' ');
+    putAscii(slot.bytes > 0 ? Long.toString(slot.bytes) : "-");
+    out.put((byte) '\n');
+  }
+
+  private void flush() {
+    out.flip();
+    try {
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      if (channel.size() >= maxFileSize) {
+        rotate();
+      }
+    } catch (IOException e) {
+      // The records are lost, but the server keeps going.
+      e.printStackTrace();
+    }
+    out.clear();
+  }
+
+  /**
+   * Moves access.log to access.log.1, access.log.1 to access.log.2 and so on,
+   * dropping the oldest, and starts a new file.
+   */
+  private void rotate() throws IOException {
+    channel.close();
+    for (int i = keepFiles - 1; i >= 1; i--) {
+      Path older = rotated(i);
+      if (Files.exists(older)) {
+        Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (keepFiles > 0) {
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    channel = open();
+  }
+
+  private Path rotated(int number) {
+    return file.resolveSibling(file.getFileName() + "." + number);
+  }
+
+  private FileChannel open() throws IOException {
+    return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+  }
+
+  private void putAscii(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      out.put((byte) text.charAt(i));
+    }
+  }
+}
@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which connections the server takes on. A connection is turned away
+ * right at accept when there are too many open connections in total or from
+ * its address, and shed later when it had to wait too long before a thread or
+ * event loop got to it. Waiting times are judged the CoDel way: a short burst
+ * above the target is fine, but once the waiting time stays above it for a
+ * whole interval, connections are shed at a rate that grows with the square
+ * root of the number shed so far, until it drops below the target again.
+ *
+ * <p>Turned away clients get a prebuilt 503 with Retry-After, written by the
+ * thread that found out, so overload never needs a worker to say no.
+ */
+public final class AdmissionControl {
+
+  // Listen backlog of the server sockets, connections beyond it wait in SYN
+  // retries instead of piling up in the kernel.
+  static final int ACCEPT_BACKLOG = 1024;
+  private static final int RETRY_AFTER_SECONDS = 1;
+  private static final byte[] REJECT_BODY = "Service Unavailable, please retry shortly.\n"
+      .getBytes(StandardCharsets.ISO_8859_1);
+  private static final byte[] REJECT_RESPONSE = rejectResponse();
+
+  private final int maxConnections;
+  private final int maxConnectionsPerAddress;
+  private final long targetNanos;
+  private final long intervalNanos;
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final ConcurrentHashMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+  // CoDel state, a ReentrantLock so waiting virtual threads don't pin their
+  // carrier.
+  private final ReentrantLock lock = new ReentrantLock();
+  private boolean aboveTarget;
+  private long firstAboveTime;
+  private boolean dropping;
+  private long dropNext;
+  private int dropCount;
+
+  private final LongAdder rejectedConnectionLimit = new LongAdder();
+  private final LongAdder rejectedAddressLimit = new LongAdder();
+  private final LongAdder shed = new LongAdder();
+
+  /**
+   * Constructor for the admission control.
+   *
+   * @param maxConnections           The open connections the server takes at
+   *                                 most.
+   *
+   * @param maxConnectionsPerAddress The open connections a single client
+   *                                 address gets at most.
+   *
+   * @param targetMillis             The waiting time that is acceptable.
+   *
+   * @param intervalMillis           How long the waiting time may stay above
+   *                                 the target before shedding starts.
+   */
+  public AdmissionControl(int maxConnections, int maxConnectionsPerAddress, long targetMillis,
+      long intervalMillis) {
+    this.maxConnections = maxConnections;
+    this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+  }
+
+  /**
+   * Counts a freshly accepted connection in, unless one of the limits is
+   * reached. Every admitted connection has to be released once it closes.
+   *
+   * @param address The client address.
+   *
+   * @return False if the connection is to be rejected.
+   */
+  public boolean admit(InetAddress address) {
+    if (connections.incrementAndGet() > maxConnections) {
+      connections.decrementAndGet();
+      rejectedConnectionLimit.increment();
+      return false;
+    }
+    if (perAddress.merge(address, 1, Integer::sum) > maxConnectionsPerAddress) {
+      release(address);
+      rejectedAddressLimit.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Counts an admitted connection out again.
+   *
+   * @param address The client address it was admitted with.
+   */
+  public void release(InetAddress address) {
+    connections.decrementAndGet();
+    perAddress.computeIfPresent(address, (a, count) -> count == 1 ? null : count - 1);
+  }
+
+  /**
+   * Judges how long a connection waited between accept and the first time a
+   * thread looked at it.
+   *
+   * @param waitedNanos The waiting time.
+   *
+   * @return True if the connection is to be shed.
+   */
+  public boolean shouldShed(long waitedNanos) {
+    long now = System.nanoTime();
+    lock.lock();
+    try {
+      if (waitedNanos < targetNanos) {
+        aboveTarget = false;
+        dropping = false;
+        return false;
+      }
+      if (!aboveTarget) {
+        aboveTarget = true;
+        firstAboveTime = now + intervalNanos;
+        return false;
+      }
+      if (!dropping) {
+        if (now - firstAboveTime < 0) {
+          return false;
+        }
+        dropping = true;
+        // Coming back soon after the last dropping state, pick up close to
+        // the rate it ended with.
+        dropCount = dropCount > 2 && now - dropNext < 16 * intervalNanos ? dropCount - 2 : 1;
+        dropNext = now + (long) (intervalNanos / Math.sqrt(dropCount));
+        shed.increment();
+        return true;
+      }
+      if (now - dropNext >= 0) {
+        dropCount++;
+        dropNext += (long) (intervalNanos / Math.sqrt(dropCount));
+        shed.increment();
+        return true;
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Answers a connection with the 503 response and closes it. The response
+   * is written without blocking, it fits into any fresh socket buffer.
+   *
+   * @param channel The connection.
+   */
+  public static void reject(SocketChannel channel) {
+    Metrics.get().connectionRejected();
+    try (channel) {
+      channel.configureBlocking(false);
+      channel.write(ByteBuffer.wrap(REJECT_RESPONSE));
+      // Half close first, so the client reads the 503 before it notices the
+      // connection is gone.
+      channel.shutdownOutput();
+      channel.read(ByteBuffer.allocate(1024));
+    } catch (SocketException e) {
+      // The client is gone already.
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public int getConnections() {
+    return connections.get();
+  }
+
+  public long getRejectedConnectionLimit() {
+    return rejectedConnectionLimit.sum();
+  }
+
+  public long getRejectedAddressLimit() {
+    return rejectedAddressLimit.sum();
+  }
+
+  public long getShed() {
+    return shed.sum();
+  }
+
+  private static byte[] rejectResponse() {
+    byte[] header = ResponseWriter.encode(WebServer.ResponseStatusCode.SERVICE_UNAVAILABLE_503,
+        "text/plain", REJECT_BODY.length,
+        "Retry-After: " + RETRY_AFTER_SECONDS + ResponseWriter.CRLF + "Connection: close"
+            + ResponseWriter.CRLF);
+    byte[] response = new byte[header.length + REJECT_BODY.length];
+    System.arraycopy(header, 0, response, 0, header.length);
+    System.arraycopy(REJECT_BODY, 0, response, header.length, REJECT_BODY.length);
+    return response;
+  }
+}
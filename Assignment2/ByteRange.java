@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One byte range of a Range request, both ends included like on the wire.
+ */
+public final class ByteRange {
+
+  // More ranges than this are ignored and the whole file is sent instead, so a
+  // request can't make the server build thousands of tiny parts.
+  private static final int MAX_RANGES = 16;
+
+  private final long start;
+  private final long end;
+
+  /**
+   * Constructor for a byte range.
+   *
+   * @param start The first byte.
+   *
+   * @param end   The last byte, inclusive.
+   */
+  public ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public long length() {
+    return end - start + 1;
+  }
+
+  /**
+   * @param size The size of the whole file.
+   *
+   * @return The Content-Range value of this range.
+   */
+  public String contentRange(long size) {
+    return "bytes " + start + "-" + end + "/" + size;
+  }
+
+  /**
+   * Parses a Range header ("bytes=0-99,200-,-50") against a file size.
+   *
+   * @param header The header value.
+   *
+   * @param size   The size of the file.
+   *
+   * @return The satisfiable ranges, an empty list if none of them is (416), or
+   *         null if the header is malformed or asks for too much and should be
+   *         ignored.
+   */
+  public static List<ByteRange> parse(String header, long size) {
+    String value = header.trim();
+    if (!value.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+
+    String[] specs = value.substring(6).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+
+    List<ByteRange> ranges = new ArrayList<>();
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+          return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+
+        long start;
+        long end;
+        if (first.isEmpty()) {
+          // Suffix range, the last n bytes.
+          long suffix = Long.parseLong(last);
+          if (suffix < 0) {
+            return null;
+          }
+          if (suffix == 0 || size == 0) {
+            continue;
+          }
+          start = Math.max(0, size - suffix);
+          end = size - 1;
+        } else {
+          start = Long.parseLong(first);
+          end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+          if (start < 0 || end < start) {
+            return null;
+          }
+          if (start >= size) {
+            continue;
+          }
+          end = Math.min(end, size - 1);
+        }
+        ranges.add(new ByteRange(start, end));
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return ranges;
+  }
+}
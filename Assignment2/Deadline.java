@@ -0,0 +1,64 @@
+import java.nio.ByteBuffer;
+
+/**
+ * What a connection is waiting for, and how long it may take. A client that
+ * misses the deadline is closed, so slow or idle clients can't hold on to a
+ * pool thread or a connection slot forever.
+ */
+public enum Deadline {
+
+  // The headers of a request, from its first byte on. A client trickling in
+  // one header line at a time (slowloris) does not get more time.
+  HEADER("header", 10_000, false),
+  // The next bytes of a request body, restarted whenever some arrive.
+  BODY("body", 30_000, true),
+  // The first byte of the next request on a kept-alive connection.
+  IDLE("idle", 15_000, false),
+  // Room in the socket for the next bytes of a response, restarted whenever
+  // some were written. Only the selector engine can tell.
+  WRITE("write", 30_000, true);
+
+  private final String label;
+  private final long millis;
+  private final boolean restartOnProgress;
+
+  Deadline(String label, long millis, boolean restartOnProgress) {
+    this.label = label;
+    this.millis = millis;
+    this.restartOnProgress = restartOnProgress;
+  }
+
+  /**
+   * Tells what a connection that is about to read again waits for.
+   *
+   * @param parser The parser of the connection.
+   *
+   * @param in     The connection buffer in write mode.
+   *
+   * @return The deadline for the read.
+   */
+  static Deadline whileReading(HttpRequestParser parser, ByteBuffer in) {
+    if (parser.isReadingBody()) {
+      return BODY;
+    }
+    return in.position() == 0 ? IDLE : HEADER;
+  }
+
+  /**
+   * @param current The deadline the connection has now, or null.
+   *
+   * @return True if switching to this deadline has to reschedule the timeout,
+   *         a deadline that is not restarted keeps running while it stays.
+   */
+  boolean reschedules(Deadline current) {
+    return this != current || restartOnProgress;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public long getMillis() {
+    return millis;
+  }
+}
@@ -0,0 +1,170 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A slice of a file that still has to be written to a socket. The bytes are
+ * moved with FileChannel.transferTo, which the kernel turns into sendfile on
+ * Linux, so the body never lands on the heap no matter how big the file is.
+ *
+ * <p>A region may also hold several slices of the same file with bytes of
+ * their own in between, the parts of a multipart/byteranges response. The
+ * part headers are sent from memory and the slices still with transferTo.
+ */
+public class FileRegion implements Closeable {
+
+  private static final ByteBuffer NOTHING = ByteBuffer.allocate(0);
+
+  private final FileChannel file;
+  // Slice i starts at starts[i] and ends before ends[i], separators[i] goes
+  // out before it and the last separator after the last slice.
+  private final long[] starts;
+  private final long[] ends;
+  private final ByteBuffer[] separators;
+  // The part being sent, its separator first, then its slice.
+  private int part;
+
+  /**
+   * Constructor for the file region.
+   *
+   * @param file     The open file, it is closed together with the region.
+   *
+   * @param position Where the region starts.
+   *
+   * @param count    The number of bytes in the region.
+   */
+  public FileRegion(FileChannel file, long position, long count) {
+    this(file, new long[] {position}, new long[] {position + count},
+        new ByteBuffer[] {NOTHING, NOTHING});
+  }
+
+  /**
+   * Constructor for a region of several slices of one file.
+   *
+   * @param file       The open file, it is closed together with the region.
+   *
+   * @param starts     Where each slice starts.
+   *
+   * @param ends       Where each slice ends, exclusive.
+   *
+   * @param separators The bytes before each slice, then the bytes after the
+   *                   last one, one more than there are slices.
+   */
+  public FileRegion(FileChannel file, long[] starts, long[] ends, ByteBuffer[] separators) {
+    this.file = file;
+    this.starts = starts.clone();
+    this.ends = ends;
+    this.separators = separators;
+  }
+
+  /**
+   * @return The number of bytes that have not been transferred yet.
+   */
+  public long remaining() {
+    long remaining = 0;
+    for (int i = part; i < separators.length; i++) {
+      remaining += separators[i].remaining();
+      if (i < starts.length) {
+        remaining += ends[i] - starts[i];
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Transfers as much of the region as the target takes right now, which for a
+   * non-blocking socket may be nothing at all.
+   *
+   * @param target The channel to write to.
+   *
+   * @return The number of bytes transferred.
+   *
+   * @throws IOException In case the file or the target fails.
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    long total = 0;
+    for (; part < separators.length; part++) {
+      ByteBuffer separator = separators[part];
+      if (separator.hasRemaining()) {
+        total += target.write(separator);
+        if (separator.hasRemaining()) {
+          return total;
+        }
+      }
+      if (part == starts.length) {
+        continue;
+      }
+      if (starts[part] < ends[part]) {
+        long transferred = file.transferTo(starts[part], ends[part] - starts[part], target);
+        if (transferred == 0 && starts[part] >= file.size()) {
+          throw new EOFException("File was truncated while it was being sent");
+        }
+        starts[part] += transferred;
+        total += transferred;
+        if (starts[part] < ends[part]) {
+          return total;
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Transfers the whole region, to be used with blocking channels only.
+   *
+   * @param target The channel to write to.
+   *
+   * @throws IOException In case the file or the target fails.
+   */
+  public void transferFully(WritableByteChannel target) throws IOException {
+    while (remaining() > 0) {
+      transferTo(target);
+    }
+  }
+
+  /**
+   * Reads the next bytes of the region into a buffer, for when they have to
+   * be framed (HTTP/2) instead of sent as they are.
+   *
+   * @param target The buffer, filled up to its limit or to the region end.
+   *
+   * @return The number of bytes read.
+   *
+   * @throws IOException In case the file fails or was truncated.
+   */
+  public int read(ByteBuffer target) throws IOException {
+    int start = target.position();
+    while (target.hasRemaining() && part < separators.length) {
+      ByteBuffer separator = separators[part];
+      if (separator.hasRemaining()) {
+        ByteBuffer window = separator.duplicate();
+        window.limit(window.position() + Math.min(window.remaining(), target.remaining()));
+        target.put(window);
+        separator.position(window.position());
+        continue;
+      }
+      if (part == starts.length || starts[part] >= ends[part]) {
+        part++;
+        continue;
+      }
+      ByteBuffer window = target.duplicate();
+      window.limit(window.position()
+          + (int) Math.min(window.remaining(), ends[part] - starts[part]));
+      int n = file.read(window, starts[part]);
+      if (n == -1) {
+        throw new EOFException("File was truncated while it was being sent");
+      }
+      starts[part] += n;
+      target.position(window.position());
+    }
+    return target.position() - start;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
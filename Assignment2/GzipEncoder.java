@@ -0,0 +1,107 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip content coding for the web server. Files are compressed once, when they
+ * are loaded into the StaticFileCache, and the compressed variant is served to
+ * every client that sends "Accept-Encoding: gzip" from then on.
+ */
+public final class GzipEncoder {
+
+  // Magic number, deflate, no flags, no mtime, no extra flags, unknown OS.
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final int GZIP_TRAILER_SIZE = 8;
+
+  private GzipEncoder() {
+  }
+
+  /**
+   * @param type The content type of a file.
+   *
+   * @return True if the type is text and worth compressing.
+   */
+  public static boolean isCompressible(String type) {
+    if (type == null) {
+      return false;
+    }
+    return type.startsWith("text/")
+        || type.equals("application/javascript")
+        || type.equals("application/json")
+        || type.equals("application/xml")
+        || type.equals("image/svg+xml");
+  }
+
+  /**
+   * Checks the Accept-Encoding header for gzip (or *) without a zero quality.
+   *
+   * @param acceptEncoding The header value, may be null.
+   *
+   * @return True if a gzip body may be sent.
+   */
+  public static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+        continue;
+      }
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      return quality > 0;
+    }
+    return false;
+  }
+
+  /**
+   * Compresses a body into the gzip format with a raw Deflater.
+   *
+   * @param body The bytes to compress, the buffer itself is not modified.
+   *
+   * @return The gzip member (header, deflate stream, CRC-32 and size).
+   */
+  public static byte[] compress(ByteBuffer body) {
+    ByteBuffer input = body.duplicate();
+    int length = input.remaining();
+
+    CRC32 crc = new CRC32();
+    crc.update(input.duplicate());
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    byte[] output = new byte[GZIP_HEADER.length + length + length / 1000 + 64];
+    System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+    int written = GZIP_HEADER.length;
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (written == output.length - GZIP_TRAILER_SIZE) {
+          output = Arrays.copyOf(output, output.length * 2);
+        }
+        written += deflater.deflate(output, written, output.length - GZIP_TRAILER_SIZE - written);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    ByteBuffer trailer = ByteBuffer.wrap(output, written, GZIP_TRAILER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    trailer.putInt((int) crc.getValue());
+    trailer.putInt(length);
+    return Arrays.copyOf(output, written + GZIP_TRAILER_SIZE);
+  }
+}
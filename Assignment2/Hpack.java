@@ -0,0 +1,445 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541) for the HTTP/2 connections. Both sides
+ * keep a dynamic table of recently sent headers, so a header repeated on
+ * every request of a connection shrinks to a single byte after its first use.
+ * Names and values are handled as ISO-8859-1 strings, one char per octet, so
+ * they turn back into the exact bytes the HTTP/1.1 handlers expect.
+ */
+final class Hpack {
+
+  static final int DEFAULT_TABLE_SIZE = 4096;
+  private static final int ENTRY_OVERHEAD = 32;
+
+  private static final String[] STATIC_NAMES = {null,
+      ":authority", ":method", ":method", ":path", ":path", ":scheme", ":scheme", ":status",
+      ":status", ":status", ":status", ":status", ":status", ":status", "accept-charset",
+      "accept-encoding", "accept-language", "accept-ranges", "accept",
+      "access-control-allow-origin", "age", "allow", "authorization", "cache-control",
+      "content-disposition", "content-encoding", "content-language", "content-length",
+      "content-location", "content-range", "content-type", "cookie", "date", "etag", "expect",
+      "expires", "from", "host", "if-match", "if-modified-since", "if-none-match", "if-range",
+      "if-unmodified-since", "last-modified", "link", "location", "max-forwards",
+      "proxy-authenticate", "proxy-authorization", "range", "referer", "refresh", "retry-after",
+      "server", "set-cookie", "strict-transport-security", "transfer-encoding", "user-agent",
+      "vary", "via", "www-authenticate"};
+  private static final String[] STATIC_VALUES = new String[STATIC_NAMES.length];
+
+  static {
+    Arrays.fill(STATIC_VALUES, "");
+    STATIC_VALUES[2] = "GET";
+    STATIC_VALUES[3] = "POST";
+    STATIC_VALUES[4] = "/";
+    STATIC_VALUES[5] = "/index.html";
+    STATIC_VALUES[6] = "http";
+    STATIC_VALUES[7] = "https";
+    STATIC_VALUES[8] = "200";
+    STATIC_VALUES[9] = "204";
+    STATIC_VALUES[10] = "206";
+    STATIC_VALUES[11] = "304";
+    STATIC_VALUES[12] = "400";
+    STATIC_VALUES[13] = "404";
+    STATIC_VALUES[14] = "500";
+    STATIC_VALUES[16] = "gzip, deflate";
+  }
+
+  // Code lengths of the Huffman code of Appendix B, symbols 0 to 256 (EOS).
+  // The code is canonical, so the codes themselves follow from the lengths.
+  private static final int[] HUFFMAN_LENGTHS = {13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28,
+      28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10,
+      12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12,
+      10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13,
+      19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7,
+      7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23,
+      21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22,
+      22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27,
+      26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25,
+      24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30};
+  private static final int EOS = 256;
+  private static final int MAX_CODE_LENGTH = 30;
+  // Symbols ordered by code, and per length the first code and its position.
+  private static final int[] HUFFMAN_SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+  private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+  private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+  private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+
+  static {
+    int next = 0;
+    int code = 0;
+    for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+      FIRST_CODE[length] = code;
+      FIRST_SYMBOL[length] = next;
+      for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+        if (HUFFMAN_LENGTHS[symbol] == length) {
+          HUFFMAN_SYMBOLS[next++] = symbol;
+          CODE_COUNT[length]++;
+        }
+      }
+      code = (code + CODE_COUNT[length]) << 1;
+    }
+  }
+
+  private Hpack() {
+  }
+
+  /**
+   * The dynamic table, newest entry first. Its size counts the octets of
+   * every name and value plus 32 per entry, as the RFC defines it.
+   */
+  private static final class Table {
+
+    private String[] names = new String[32];
+    private String[] values = new String[32];
+    // Position of the newest entry, the older ones follow it around the ring.
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    Table(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    int count() {
+      return count;
+    }
+
+    String name(int index) {
+      return names[(head + index) % names.length];
+    }
+
+    String value(int index) {
+      return values[(head + index) % values.length];
+    }
+
+    void add(String name, String value) {
+      int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+      evict(maxSize - entrySize);
+      if (entrySize > maxSize) {
+        // Too big for the table, which is simply empty afterwards.
+        return;
+      }
+      if (count == names.length) {
+        String[] biggerNames = new String[count * 2];
+        String[] biggerValues = new String[count * 2];
+        for (int i = 0; i < count; i++) {
+          biggerNames[i] = name(i);
+          biggerValues[i] = value(i);
+        }
+        names = biggerNames;
+        values = biggerValues;
+        head = 0;
+      }
+      head = (head - 1 + names.length) % names.length;
+      names[head] = name;
+      values[head] = value;
+      count++;
+      size += entrySize;
+    }
+
+    void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+      evict(maxSize);
+    }
+
+    private void evict(int limit) {
+      while (count > 0 && size > Math.max(0, limit)) {
+        int oldest = (head + count - 1) % names.length;
+        size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+        names[oldest] = null;
+        values[oldest] = null;
+        count--;
+      }
+    }
+  }
+
+  /**
+   * Decodes the header blocks a client sends, one decoder per connection
+   * since every block changes the table for the next one.
+   */
+  static final class Decoder {
+
+    private final Table table = new Table(DEFAULT_TABLE_SIZE);
+    private final int maxHeaderListSize;
+
+    /**
+     * Constructor for the decoder.
+     *
+     * @param maxHeaderListSize The most a header list may add up to, names,
+     *                          values and 32 octets per field.
+     */
+    Decoder(int maxHeaderListSize) {
+      this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * Decodes one complete header block.
+     *
+     * @param block The block, HEADERS and CONTINUATION fragments put together.
+     *
+     * @return Names and values in turns, in the order they were sent.
+     *
+     * @throws Http2Exception In case the block is malformed, which breaks the
+     *                        table and so the whole connection.
+     */
+    List<String> decode(ByteBuffer block) throws Http2Exception {
+      List<String> fields = new ArrayList<>();
+      int listSize = 0;
+      try {
+        while (block.hasRemaining()) {
+          int b = block.get() & 0xff;
+          String name;
+          String value;
+          if ((b & 0x80) != 0) {
+            // Indexed field.
+            int index = decodeInt(block, b, 7);
+            name = name(index);
+            value = value(index);
+          } else if ((b & 0xe0) == 0x20) {
+            // Table size update, only allowed before the first field.
+            int maxSize = decodeInt(block, b, 5);
+            if (!fields.isEmpty() || maxSize > DEFAULT_TABLE_SIZE) {
+              throw error("Bad table size update");
+            }
+            table.setMaxSize(maxSize);
+            continue;
+          } else {
+            // Literal, with incremental indexing (01), without (0000) or never
+            // indexed (0001). The last two are the same to a server.
+            boolean indexing = (b & 0xc0) == 0x40;
+            int index = decodeInt(block, b, indexing ? 6 : 4);
+            name = index == 0 ? decodeString(block) : name(index);
+            value = decodeString(block);
+            if (indexing) {
+              table.add(name, value);
+            }
+          }
+          listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+          if (listSize > maxHeaderListSize) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, 0, "Header list too large");
+          }
+          fields.add(name);
+          fields.add(value);
+        }
+      } catch (BufferUnderflowException e) {
+        throw error("Truncated header block");
+      }
+      return fields;
+    }
+
+    private String name(int index) throws Http2Exception {
+      if (index > 0 && index < STATIC_NAMES.length) {
+        return STATIC_NAMES[index];
+      }
+      int dynamic = index - STATIC_NAMES.length;
+      if (index == 0 || dynamic >= table.count()) {
+        throw error("Bad table index " + index);
+      }
+      return table.name(dynamic);
+    }
+
+    private String value(int index) {
+      return index < STATIC_NAMES.length ? STATIC_VALUES[index]
+          : table.value(index - STATIC_NAMES.length);
+    }
+  }
+
+  /**
+   * Encodes the response headers, one encoder per connection. Headers whose
+   * value changes with every response (sizes, dates, validators) are sent as
+   * literals, so they don't push the useful entries out of the table.
+   */
+  static final class Encoder {
+
+    private final Table table = new Table(DEFAULT_TABLE_SIZE);
+    private int pendingSizeUpdate = -1;
+    private byte[] out = new byte[256];
+    private int length;
+
+    /**
+     * Follows the SETTINGS_HEADER_TABLE_SIZE of the client, the table never
+     * grows beyond the default though.
+     *
+     * @param maxSize The setting.
+     */
+    void setMaxTableSize(int maxSize) {
+      int size = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+      table.setMaxSize(size);
+      pendingSizeUpdate = size;
+    }
+
+    /**
+     * Starts a new header block.
+     */
+    void begin() {
+      length = 0;
+      if (pendingSizeUpdate >= 0) {
+        encodeInt(0x20, 5, pendingSizeUpdate);
+        pendingSizeUpdate = -1;
+      }
+    }
+
+    /**
+     * Adds a field to the block.
+     *
+     * @param name     The name in lower case.
+     *
+     * @param value    The value.
+     *
+     * @param indexing Whether the field goes into the table for next time.
+     */
+    void header(String name, String value, boolean indexing) {
+      int nameIndex = 0;
+      for (int i = 1; i < STATIC_NAMES.length; i++) {
+        if (STATIC_NAMES[i].equals(name)) {
+          if (STATIC_VALUES[i].equals(value)) {
+            encodeInt(0x80, 7, i);
+            return;
+          }
+          if (nameIndex == 0) {
+            nameIndex = i;
+          }
+        }
+      }
+      for (int i = 0; i < table.count(); i++) {
+        if (table.name(i).equals(name)) {
+          if (table.value(i).equals(value)) {
+            encodeInt(0x80, 7, STATIC_NAMES.length + i);
+            return;
+          }
+          if (nameIndex == 0) {
+            nameIndex = STATIC_NAMES.length + i;
+          }
+        }
+      }
+
+      if (indexing) {
+        encodeInt(0x40, 6, nameIndex);
+      } else {
+        encodeInt(0x00, 4, nameIndex);
+      }
+      if (nameIndex == 0) {
+        encodeString(name);
+      }
+      encodeString(value);
+      if (indexing) {
+        table.add(name, value);
+      }
+    }
+
+    /**
+     * @return The block encoded since begin.
+     */
+    ByteBuffer end() {
+      return ByteBuffer.wrap(Arrays.copyOf(out, length));
+    }
+
+    private void encodeInt(int pattern, int prefixBits, int value) {
+      int max = (1 << prefixBits) - 1;
+      if (value < max) {
+        put(pattern | value);
+        return;
+      }
+      put(pattern | max);
+      value -= max;
+      while (value >= 0x80) {
+        put((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      put(value);
+    }
+
+    // Strings go out as they are, Huffman coding them would save about a
+    // fifth of a few short values and cost time on every response.
+    private void encodeString(String text) {
+      encodeInt(0x00, 7, text.length());
+      for (int i = 0; i < text.length(); i++) {
+        put(text.charAt(i));
+      }
+    }
+
+    private void put(int b) {
+      if (length == out.length) {
+        out = Arrays.copyOf(out, length * 2);
+      }
+      out[length++] = (byte) b;
+    }
+  }
+
+  private static int decodeInt(ByteBuffer in, int first, int prefixBits) throws Http2Exception {
+    int max = (1 << prefixBits) - 1;
+    int value = first & max;
+    if (value < max) {
+      return value;
+    }
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 21) {
+        throw error("Integer too large");
+      }
+      b = in.get() & 0xff;
+      value += (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static String decodeString(ByteBuffer in) throws Http2Exception {
+    int first = in.get() & 0xff;
+    int length = decodeInt(in, first, 7);
+    if (length > in.remaining()) {
+      throw error("String longer than the block");
+    }
+    if ((first & 0x80) != 0) {
+      return huffmanDecode(in, length);
+    }
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char) (in.get() & 0xff);
+    }
+    return new String(chars);
+  }
+
+  private static String huffmanDecode(ByteBuffer in, int length) throws Http2Exception {
+    StringBuilder out = new StringBuilder(length * 8 / 5);
+    int code = 0;
+    int bits = 0;
+    for (int i = 0; i < length; i++) {
+      int b = in.get() & 0xff;
+      for (int bit = 7; bit >= 0; bit--) {
+        code = (code << 1) | ((b >>> bit) & 1);
+        bits++;
+        // Codes of one length are consecutive numbers, so a code is complete
+        // as soon as it falls into the range of its length.
+        int offset = code - FIRST_CODE[bits];
+        if (offset >= 0 && offset < CODE_COUNT[bits]) {
+          int symbol = HUFFMAN_SYMBOLS[FIRST_SYMBOL[bits] + offset];
+          if (symbol == EOS) {
+            throw error("EOS in Huffman string");
+          }
+          out.append((char) symbol);
+          code = 0;
+          bits = 0;
+        } else if (bits == MAX_CODE_LENGTH) {
+          throw error("Bad Huffman code");
+        }
+      }
+    }
+    // Whatever is left has to be padding, the start of EOS: up to 7 one bits.
+    if (bits > 7 || code != (1 << bits) - 1) {
+      throw error("Bad Huffman padding");
+    }
+    return out.toString();
+  }
+
+  private static Http2Exception error(String message) {
+    return new Http2Exception(Http2Exception.COMPRESSION_ERROR, 0, message);
+  }
+}
@@ -0,0 +1,995 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One HTTP/2 connection over cleartext (h2c, RFC 9113), entered either with
+ * the connection preface right away or through "Upgrade: h2c". Like the
+ * HttpRequestParser it does no I/O itself: the engine feeds it the bytes it
+ * read and writes out whatever takeOutput returns, so the selector engine and
+ * the thread engines share it.
+ *
+ * <p>Every stream carries one request. Once a request is complete it is
+ * turned back into HTTP/1.1 bytes and goes through the HttpRequestParser and
+ * the usual WebServer handlers, whose response is split into HEADERS and DATA
+ * frames. The DATA frames of all streams are sent round robin, within the
+ * flow control windows the client grants, so a big file does not hold up the
+ * small ones requested next to it.
+ *
+ * <p>Window credit goes back to the client as soon as its DATA arrives, so flow
+ * control does not bound what request bodies take. The DATA of a
+ * multipart/form-data POST goes straight to the MultipartParser of its
+ * stream and to disk, like on HTTP/1.1. Other bodies, which no handler has a
+ * use for, are buffered up to MAX_BUFFERED_BODY per stream.
+ */
+final class Http2Connection implements Closeable {
+
+  private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+      .getBytes(StandardCharsets.ISO_8859_1);
+  // What is left of the preface after the HttpRequestParser took its first
+  // part for a request.
+  private static final int PREFACE_REQUEST_LENGTH = 18;
+  private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+      + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+  private static final int DATA = 0x0;
+  private static final int HEADERS = 0x1;
+  private static final int PRIORITY = 0x2;
+  private static final int RST_STREAM = 0x3;
+  private static final int SETTINGS = 0x4;
+  private static final int PUSH_PROMISE = 0x5;
+  private static final int PING = 0x6;
+  private static final int GOAWAY = 0x7;
+  private static final int WINDOW_UPDATE = 0x8;
+  private static final int CONTINUATION = 0x9;
+
+  private static final int FLAG_END_STREAM = 0x1;
+  private static final int FLAG_ACK = 0x1;
+  private static final int FLAG_END_HEADERS = 0x4;
+  private static final int FLAG_PADDED = 0x8;
+  private static final int FLAG_PRIORITY = 0x20;
+
+  private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  private static final int SETTINGS_ENABLE_PUSH = 0x2;
+  private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+  private static final int FRAME_HEADER_SIZE = 9;
+  private static final int DEFAULT_FRAME_SIZE = 16384;
+  private static final int MAX_FRAME_SIZE_LIMIT = 16777215;
+  private static final int DEFAULT_WINDOW = 65535;
+  private static final int MAX_WINDOW = Integer.MAX_VALUE;
+  private static final int MAX_CONCURRENT_STREAMS = 100;
+  // The window every stream and the connection get for request bodies. It is
+  // topped up once half of the default window has been used, which works no
+  // matter whether the client has seen the bigger setting yet.
+  private static final int RECEIVE_WINDOW = 1024 * 1024;
+  private static final int WINDOW_UPDATE_THRESHOLD = DEFAULT_WINDOW / 2;
+  // What a request body other than an upload may take on the heap, for all
+  // streams of a connection together at most MAX_CONCURRENT_STREAMS times it.
+  private static final int MAX_BUFFERED_BODY = DEFAULT_WINDOW;
+  // DATA bytes handed out per takeOutput, the rest waits until they are sent.
+  private static final int OUTPUT_LIMIT = 256 * 1024;
+
+  // Connection-specific header fields, which HTTP/2 does without.
+  private static final List<String> HOP_BY_HOP = List.of("connection", "keep-alive",
+      "proxy-connection", "transfer-encoding", "upgrade");
+  // Response headers that differ from file to file, they are sent as literals
+  // instead of filling the HPACK table.
+  private static final List<String> NOT_INDEXED = List.of("content-length", "etag",
+      "last-modified", "content-range", "date", "location");
+
+  /**
+   * One request and its response.
+   */
+  private static final class Stream {
+
+    private final int id;
+    private int sendWindow;
+    private int receiveUnacked;
+    private List<String> fields;
+    private ByteBuffer body;
+    // The upload the body is streamed into, for a multipart/form-data POST.
+    private MultipartParser upload;
+    // Why the body was dropped, answered once the request is complete.
+    private HttpParseException bodyError;
+    private boolean requestDone;
+    private boolean head;
+    // The response body still to be sent: buffers first, then the file.
+    private final ArrayDeque<ByteBuffer> data = new ArrayDeque<>();
+    private FileRegion file;
+    private boolean scheduled;
+
+    Stream(int id, int sendWindow) {
+      this.id = id;
+      this.sendWindow = sendWindow;
+    }
+
+    long remaining() {
+      long remaining = file != null ? file.remaining() : 0;
+      for (ByteBuffer buffer : data) {
+        remaining += buffer.remaining();
+      }
+      return remaining;
+    }
+  }
+
+  private final WebServer handler;
+  private final ResponseWriter writer;
+  private final HttpRequestParser parser = new HttpRequestParser();
+  private final Hpack.Decoder decoder = new Hpack.Decoder(HttpRequestParser.MAX_HEADER_SIZE);
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private final Map<Integer, Stream> streams = new HashMap<>();
+  // Streams with response data and room in their window, served in turns.
+  private final ArrayDeque<Stream> sending = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+
+  private int prefaceOffset;
+  private int lastStreamId;
+  private int sendWindow = DEFAULT_WINDOW;
+  private int initialSendWindow = DEFAULT_WINDOW;
+  private int maxFrameSize = DEFAULT_FRAME_SIZE;
+  private int receiveUnacked;
+
+  // A header block that continues in CONTINUATION frames.
+  private int continuedStream;
+  private ByteBuffer headerBlock;
+  private boolean headerEndStream;
+
+  private boolean goingAway;
+  private boolean closed;
+
+  /**
+   * Constructor for a connection whose client started with the preface. The
+   * HttpRequestParser has already taken its "PRI * HTTP/2.0" part.
+   *
+   * @param handler The handlers, with a writer that hands the responses over.
+   *
+   * @param writer  That writer.
+   */
+  Http2Connection(WebServer handler, ResponseWriter writer) {
+    this.handler = handler;
+    this.writer = writer;
+    this.prefaceOffset = PREFACE_REQUEST_LENGTH;
+    sendSettings();
+  }
+
+  /**
+   * Switches a connection over after an "Upgrade: h2c" request, which becomes
+   * stream 1 and is answered over HTTP/2.
+   *
+   * @param handler The handlers, with a writer that hands the responses over.
+   *
+   * @param writer  That writer.
+   *
+   * @param request The upgrade request.
+   *
+   * @return The connection, expecting the client preface next.
+   *
+   * @throws IOException In case the handlers fail.
+   */
+  static Http2Connection upgrade(WebServer handler, ResponseWriter writer, HttpRequest request)
+      throws IOException {
+    Http2Connection connection = new Http2Connection(handler, writer, request);
+    connection.prefaceOffset = 0;
+    return connection;
+  }
+
+  private Http2Connection(WebServer handler, ResponseWriter writer, HttpRequest request)
+      throws IOException {
+    this.handler = handler;
+    this.writer = writer;
+    output.add(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+    sendSettings();
+    try {
+      byte[] settings = Base64.getUrlDecoder().decode(request.getHeader("http2-settings").trim());
+      applySettings(ByteBuffer.wrap(settings));
+    } catch (IllegalArgumentException | Http2Exception e) {
+      goAway(Http2Exception.PROTOCOL_ERROR);
+      return;
+    }
+
+    Stream stream = new Stream(1, initialSendWindow);
+    stream.requestDone = true;
+    stream.head = request.isMethod("HEAD");
+    streams.put(1, stream);
+    lastStreamId = 1;
+    handler.handleRequest(request);
+    respond(stream);
+  }
+
+  /**
+   * Processes every complete frame in the buffer.
+   *
+   * @param in The bytes read so far, in read mode. An incomplete frame is
+   *           left in it for the next call.
+   *
+   * @throws IOException In case the handlers fail.
+   */
+  void feed(ByteBuffer in) throws IOException {
+    try {
+      while (prefaceOffset < PREFACE.length && in.hasRemaining() && !closed) {
+        if (in.get() != PREFACE[prefaceOffset++]) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Bad connection preface");
+        }
+      }
+      while (!closed && in.remaining() >= FRAME_HEADER_SIZE) {
+        int start = in.position();
+        int length = (in.get(start) & 0xff) << 16 | (in.get(start + 1) & 0xff) << 8
+            | (in.get(start + 2) & 0xff);
+        if (length > DEFAULT_FRAME_SIZE) {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Frame too large");
+        }
+        if (in.remaining() < FRAME_HEADER_SIZE + length) {
+          break;
+        }
+        int type = in.get(start + 3) & 0xff;
+        int flags = in.get(start + 4) & 0xff;
+        int streamId = in.getInt(start + 5) & MAX_WINDOW;
+        ByteBuffer payload = in.duplicate();
+        payload.position(start + FRAME_HEADER_SIZE).limit(start + FRAME_HEADER_SIZE + length);
+        in.position(start + FRAME_HEADER_SIZE + length);
+        try {
+          onFrame(type, flags, streamId, payload.slice());
+        } catch (Http2Exception e) {
+          if (e.getStreamId() == 0) {
+            throw e;
+          }
+          reset(e.getStreamId(), e.getErrorCode());
+        }
+      }
+    } catch (Http2Exception e) {
+      goAway(e.getErrorCode());
+    }
+    if (closed) {
+      in.position(in.limit());
+    }
+  }
+
+  /**
+   * Hands out what is to be written next: control frames, headers and as
+   * many DATA frames as the flow control windows allow.
+   *
+   * @return The buffers to write, in order, or null if there is nothing.
+   *
+   * @throws IOException In case a file can't be read.
+   */
+  ByteBuffer[] takeOutput() throws IOException {
+    fill();
+    if (output.isEmpty()) {
+      return null;
+    }
+    ByteBuffer[] buffers = output.toArray(new ByteBuffer[0]);
+    output.clear();
+    return buffers;
+  }
+
+  /**
+   * @return True once the connection is to be closed, after the output that
+   *         was taken last has been written.
+   */
+  boolean isClosed() {
+    return closed || (goingAway && streams.isEmpty());
+  }
+
+  /**
+   * Releases the files of responses that were not sent completely.
+   */
+  @Override
+  public void close() {
+    for (Stream stream : streams.values()) {
+      closeFile(stream);
+    }
+    streams.clear();
+    sending.clear();
+  }
+
+  private void onFrame(int type, int flags, int streamId, ByteBuffer payload)
+      throws IOException {
+    if (continuedStream != 0 && (type != CONTINUATION || streamId != continuedStream)) {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Header block interrupted");
+    }
+    switch (type) {
+      case DATA:
+        onData(flags, streamId, payload);
+        break;
+      case HEADERS:
+        onHeaders(flags, streamId, payload);
+        break;
+      case CONTINUATION:
+        if (continuedStream == 0) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Unexpected CONTINUATION");
+        }
+        headerBlock = append(headerBlock, payload);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+          continuedStream = 0;
+          onHeaderBlock(streamId);
+        }
+        break;
+      case PRIORITY:
+        if (streamId == 0) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "PRIORITY on stream 0");
+        }
+        if (payload.remaining() != 5) {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "Bad PRIORITY");
+        }
+        break;
+      case RST_STREAM:
+        if (streamId == 0 || streamId > lastStreamId) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "RST_STREAM on idle stream");
+        }
+        if (payload.remaining() != 4) {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Bad RST_STREAM");
+        }
+        Stream cancelled = streams.remove(streamId);
+        if (cancelled != null) {
+          closeFile(cancelled);
+        }
+        break;
+      case SETTINGS:
+        onSettings(flags, streamId, payload);
+        break;
+      case PING:
+        if (streamId != 0) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+          throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Bad PING");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+          queueFrame(PING, FLAG_ACK, 0, copy(payload));
+        }
+        break;
+      case GOAWAY:
+        if (streamId != 0) {
+          throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "GOAWAY on a stream");
+        }
+        // Requests already in are still answered, then the connection closes.
+        goingAway = true;
+        break;
+      case WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload);
+        break;
+      case PUSH_PROMISE:
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "PUSH_PROMISE from a client");
+      default:
+        // Unknown frame types are ignored.
+        break;
+    }
+  }
+
+  private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (streamId == 0) {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "DATA on stream 0");
+    }
+    // Padding counts against the windows too.
+    consumed(null, payload.remaining());
+    Stream stream = streams.get(streamId);
+    if (stream == null || stream.requestDone) {
+      if (streamId > lastStreamId) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "DATA on idle stream");
+      }
+      throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream");
+    }
+    int length = payload.remaining();
+    ByteBuffer data = unpad(flags, streamId, payload);
+    if (stream.bodyError != null) {
+      // Dropped, the request gets its error response once it is complete.
+    } else if (stream.upload != null) {
+      feed(stream, data);
+    } else if ((stream.body != null ? stream.body.position() : 0) + data.remaining()
+        > MAX_BUFFERED_BODY) {
+      stream.bodyError = new HttpParseException(
+          WebServer.ResponseStatusCode.PAYLOAD_TOO_LARGE_413, "Body too large");
+      stream.body = null;
+    } else {
+      stream.body = append(stream.body, data);
+    }
+    if ((flags & FLAG_END_STREAM) != 0) {
+      onRequestComplete(stream);
+    } else {
+      consumed(stream, length);
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (streamId == 0) {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "HEADERS on stream 0");
+    }
+    ByteBuffer fragment = unpad(flags, streamId, payload);
+    if ((flags & FLAG_PRIORITY) != 0) {
+      if (fragment.remaining() < 5) {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Bad HEADERS priority");
+      }
+      fragment.position(fragment.position() + 5);
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      if ((streamId & 1) == 0 || streamId <= lastStreamId) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Bad stream id " + streamId);
+      }
+      lastStreamId = streamId;
+    } else if (stream.requestDone || (flags & FLAG_END_STREAM) == 0) {
+      // A second block is only allowed as the trailers that end the request.
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Unexpected HEADERS");
+    }
+
+    headerBlock = append(null, fragment);
+    headerEndStream = (flags & FLAG_END_STREAM) != 0;
+    if ((flags & FLAG_END_HEADERS) != 0) {
+      onHeaderBlock(streamId);
+    } else {
+      continuedStream = streamId;
+    }
+  }
+
+  private void onHeaderBlock(int streamId) throws IOException {
+    headerBlock.flip();
+    if (headerBlock.remaining() > HttpRequestParser.MAX_HEADER_SIZE) {
+      throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, 0, "Header block too large");
+    }
+    // Decoded even when the stream is refused, the HPACK table depends on it.
+    List<String> fields = decoder.decode(headerBlock);
+    headerBlock = null;
+
+    Stream stream = streams.get(streamId);
+    if (stream != null) {
+      // Trailers, which the handlers have no use for.
+      onRequestComplete(stream);
+      return;
+    }
+    if (streams.size() >= MAX_CONCURRENT_STREAMS || goingAway) {
+      throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Too many streams");
+    }
+    stream = new Stream(streamId, initialSendWindow);
+    stream.fields = fields;
+    stream.upload = upload(fields);
+    streams.put(streamId, stream);
+    if (headerEndStream) {
+      onRequestComplete(stream);
+    }
+  }
+
+  private void onSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (streamId != 0) {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "SETTINGS on a stream");
+    }
+    if ((flags & FLAG_ACK) != 0) {
+      if (payload.hasRemaining()) {
+        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "SETTINGS ACK with payload");
+      }
+      return;
+    }
+    applySettings(payload);
+    queueFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0));
+  }
+
+  private void applySettings(ByteBuffer payload) throws Http2Exception {
+    if (payload.remaining() % 6 != 0) {
+      throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Bad SETTINGS length");
+    }
+    while (payload.hasRemaining()) {
+      int id = payload.getShort() & 0xffff;
+      long value = payload.getInt() & 0xffffffffL;
+      switch (id) {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaxTableSize((int) Math.min(value, Hpack.DEFAULT_TABLE_SIZE));
+          break;
+        case SETTINGS_ENABLE_PUSH:
+          if (value > 1) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Bad ENABLE_PUSH");
+          }
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value > MAX_WINDOW) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, 0, "Window too large");
+          }
+          // The change applies to the windows of all open streams.
+          int delta = (int) value - initialSendWindow;
+          initialSendWindow = (int) value;
+          for (Stream stream : streams.values()) {
+            if ((long) stream.sendWindow + delta > MAX_WINDOW) {
+              throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, 0, "Window overflow");
+            }
+            stream.sendWindow += delta;
+            schedule(stream);
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Bad MAX_FRAME_SIZE");
+          }
+          maxFrameSize = (int) value;
+          break;
+        default:
+          // MAX_CONCURRENT_STREAMS limits pushes, which are never sent, and
+          // the rest is advisory or unknown.
+          break;
+      }
+    }
+  }
+
+  private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+    if (payload.remaining() != 4) {
+      throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Bad WINDOW_UPDATE");
+    }
+    int increment = payload.getInt() & MAX_WINDOW;
+    if (increment == 0) {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Zero window increment");
+    }
+    if (streamId == 0) {
+      if ((long) sendWindow + increment > MAX_WINDOW) {
+        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, 0, "Window overflow");
+      }
+      sendWindow += increment;
+      return;
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      return;
+    }
+    if ((long) stream.sendWindow + increment > MAX_WINDOW) {
+      throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Window overflow");
+    }
+    stream.sendWindow += increment;
+    schedule(stream);
+  }
+
+  /**
+   * Runs the request of a stream through the handlers once all of it is in.
+   */
+  private void onRequestComplete(Stream stream) throws IOException {
+    stream.requestDone = true;
+    if (stream.bodyError != null) {
+      handler.handleParseError(stream.bodyError);
+      respond(stream);
+      return;
+    }
+
+    ByteBuffer in = http1Request(stream);
+    try {
+      if (!parser.parse(in)) {
+        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, "Incomplete request");
+      }
+      HttpRequest request = parser.getRequest();
+      if (stream.upload != null) {
+        // The body is on disk already, the request goes without one.
+        request.upload = stream.upload;
+      }
+      handler.handleRequest(request);
+    } catch (HttpParseException e) {
+      handler.handleParseError(e);
+    } finally {
+      parser.consume(in);
+    }
+    respond(stream);
+  }
+
+  /**
+   * Starts the upload of a multipart/form-data POST, so its DATA can go to
+   * disk as it arrives.
+   *
+   * @return The upload, or null for any other request.
+   */
+  private static MultipartParser upload(List<String> fields) {
+    boolean post = false;
+    String contentType = null;
+    for (int i = 0; i < fields.size(); i += 2) {
+      String name = fields.get(i);
+      if (name.equals(":method")) {
+        post = fields.get(i + 1).equals("POST");
+      } else if (name.equals("content-type")) {
+        contentType = fields.get(i + 1);
+      }
+    }
+    String boundary = post ? MultipartParser.boundary(contentType) : null;
+    return boundary != null ? new MultipartParser(boundary, WebServer.UPLOAD_DIRECTORY) : null;
+  }
+
+  /**
+   * Hands DATA of a stream to its upload. A malformed body or a failed write
+   * drops the upload, the error is answered once the request is complete.
+   */
+  private static void feed(Stream stream, ByteBuffer data) {
+    try {
+      stream.upload.feed(data);
+    } catch (HttpParseException e) {
+      stream.bodyError = e;
+    } catch (IOException e) {
+      stream.bodyError = new HttpParseException(
+          WebServer.ResponseStatusCode.INTERNAL_SERVER_ERROR_500,
+          "Upload failed: " + e.getMessage());
+    }
+    if (stream.bodyError != null) {
+      stream.upload.abort();
+      stream.upload = null;
+    }
+  }
+
+  /**
+   * Writes the request of a stream down the way an HTTP/1.1 client would
+   * have sent it.
+   */
+  private ByteBuffer http1Request(Stream stream) throws Http2Exception {
+    String method = null;
+    String path = null;
+    String authority = null;
+    boolean scheme = false;
+    boolean regular = false;
+    boolean host = false;
+    StringBuilder headers = new StringBuilder();
+
+    List<String> fields = stream.fields;
+    for (int i = 0; i < fields.size(); i += 2) {
+      String name = fields.get(i);
+      String value = fields.get(i + 1);
+      if (!validField(name, value)) {
+        throw malformed(stream, "Malformed header field");
+      }
+      if (name.startsWith(":")) {
+        if (regular) {
+          throw malformed(stream, "Pseudo-header after regular header");
+        }
+        if (name.equals(":method") && method == null) {
+          method = value;
+        } else if (name.equals(":path") && path == null) {
+          path = value;
+        } else if (name.equals(":authority") && authority == null) {
+          authority = value;
+        } else if (name.equals(":scheme") && !scheme) {
+          scheme = true;
+        } else {
+          throw malformed(stream, "Bad pseudo-header " + name);
+        }
+        continue;
+      }
+      regular = true;
+      if (HOP_BY_HOP.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+        throw malformed(stream, "Connection-specific header " + name);
+      }
+      if (name.equals("content-length")) {
+        // Replaced by the length of the body that actually came.
+        continue;
+      }
+      host |= name.equals("host");
+      headers.append(name).append(": ").append(value).append("\r\n");
+    }
+    if (method == null || path == null || path.isEmpty() || !scheme) {
+      throw malformed(stream, "Missing pseudo-header");
+    }
+    stream.head = method.equals("HEAD");
+    if (!host && authority != null) {
+      headers.append("host: ").append(authority).append("\r\n");
+    }
+
+    int bodyLength = stream.body != null ? stream.body.position() : 0;
+    if (bodyLength > 0) {
+      headers.append("content-length: ").append(bodyLength).append("\r\n");
+    }
+    byte[] head = (method + " " + path + " HTTP/1.1\r\n" + headers + "\r\n")
+        .getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer in = ByteBuffer.allocate(head.length + bodyLength);
+    in.put(head);
+    if (bodyLength > 0) {
+      stream.body.flip();
+      in.put(stream.body);
+    }
+    stream.fields = null;
+    stream.body = null;
+    return in;
+  }
+
+  /**
+   * Turns what the handlers wrote into HEADERS frames and queues the body
+   * for DATA frames.
+   */
+  private void respond(Stream stream) {
+    ByteBuffer[] buffers = writer.takeBuffers();
+    FileRegion file = writer.takeBody();
+
+    // The header block the handlers encoded for HTTP/1.1 is read back field
+    // by field, it always comes first and ends with an empty line.
+    StringBuilder head = new StringBuilder();
+    int index = 0;
+    while (index < buffers.length && !endsWithEmptyLine(head)) {
+      ByteBuffer buffer = buffers[index];
+      while (buffer.hasRemaining() && !endsWithEmptyLine(head)) {
+        head.append((char) (buffer.get() & 0xff));
+      }
+      if (!buffer.hasRemaining()) {
+        index++;
+      }
+    }
+    if (index < buffers.length && buffers[index].position() > 0) {
+      // Body bytes in the pooled header buffer, which is about to go back.
+      buffers[index] = copy(buffers[index]);
+    }
+    for (; index < buffers.length; index++) {
+      if (buffers[index].hasRemaining()) {
+        stream.data.add(buffers[index]);
+      }
+    }
+    stream.file = file;
+    writer.release();
+    if (stream.head) {
+      // Whatever the handlers made of it, a HEAD response has no body.
+      stream.data.clear();
+      closeFile(stream);
+    }
+
+    String[] lines = head.toString().split("\r\n");
+    encoder.begin();
+    encoder.header(":status", lines[0].substring(9, 12), true);
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon <= 0) {
+        continue;
+      }
+      String name = lines[i].substring(0, colon).trim().toLowerCase();
+      if (!HOP_BY_HOP.contains(name)) {
+        encoder.header(name, lines[i].substring(colon + 1).trim(), !NOT_INDEXED.contains(name));
+      }
+    }
+    ByteBuffer block = encoder.end();
+
+    boolean endStream = stream.remaining() == 0;
+    int type = HEADERS;
+    do {
+      int length = Math.min(block.remaining(), maxFrameSize);
+      ByteBuffer fragment = block.duplicate();
+      fragment.limit(fragment.position() + length);
+      block.position(block.position() + length);
+      int flags = (block.hasRemaining() ? 0 : FLAG_END_HEADERS)
+          | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+      queueFrame(type, flags, stream.id, fragment);
+      type = CONTINUATION;
+    } while (block.hasRemaining());
+
+    if (endStream) {
+      closeFile(stream);
+      streams.remove(stream.id);
+    } else {
+      schedule(stream);
+    }
+  }
+
+  /**
+   * Queues DATA frames, taking turns between the streams, until the windows
+   * or OUTPUT_LIMIT say stop.
+   */
+  private void fill() throws IOException {
+    if (prefaceOffset < PREFACE.length) {
+      // A client that upgraded only buffers so much after the 101 until it
+      // has sent its preface, the body of stream 1 waits for it.
+      return;
+    }
+    long queued = 0;
+    while (queued < OUTPUT_LIMIT && sendWindow > 0 && !sending.isEmpty()) {
+      Stream stream = sending.poll();
+      stream.scheduled = false;
+      if (streams.get(stream.id) != stream) {
+        // Reset in the meantime.
+        continue;
+      }
+      if (stream.sendWindow <= 0) {
+        // Waits for a WINDOW_UPDATE, which schedules it again.
+        continue;
+      }
+      long remaining = stream.remaining();
+      int length = (int) Math.min(Math.min(remaining, maxFrameSize),
+          Math.min(stream.sendWindow, sendWindow));
+      boolean last = length == remaining;
+      output.add(frameHeader(length, DATA, last ? FLAG_END_STREAM : 0, stream.id));
+      int left = length;
+      while (left > 0 && !stream.data.isEmpty()) {
+        ByteBuffer buffer = stream.data.peek();
+        int n = Math.min(left, buffer.remaining());
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + n);
+        buffer.position(buffer.position() + n);
+        output.add(slice);
+        left -= n;
+        if (!buffer.hasRemaining()) {
+          stream.data.poll();
+        }
+      }
+      if (left > 0) {
+        ByteBuffer chunk = ByteBuffer.allocate(left);
+        stream.file.read(chunk);
+        chunk.flip();
+        output.add(chunk);
+      }
+
+      stream.sendWindow -= length;
+      sendWindow -= length;
+      queued += length;
+      if (last) {
+        closeFile(stream);
+        streams.remove(stream.id);
+      } else {
+        schedule(stream);
+      }
+    }
+  }
+
+  private void schedule(Stream stream) {
+    if (!stream.scheduled && stream.requestDone && stream.sendWindow > 0
+        && stream.remaining() > 0) {
+      stream.scheduled = true;
+      sending.add(stream);
+    }
+  }
+
+  /**
+   * Gives the client back the window its DATA used, once enough of it has
+   * been used to be worth a frame.
+   *
+   * @param stream The stream, or null for the connection window.
+   */
+  private void consumed(Stream stream, int length) {
+    if (stream == null) {
+      receiveUnacked += length;
+      if (receiveUnacked >= WINDOW_UPDATE_THRESHOLD) {
+        queueWindowUpdate(0, receiveUnacked);
+        receiveUnacked = 0;
+      }
+    } else {
+      stream.receiveUnacked += length;
+      if (stream.receiveUnacked >= WINDOW_UPDATE_THRESHOLD) {
+        queueWindowUpdate(stream.id, stream.receiveUnacked);
+        stream.receiveUnacked = 0;
+      }
+    }
+  }
+
+  private void sendSettings() {
+    ByteBuffer settings = ByteBuffer.allocate(18);
+    settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+    settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(RECEIVE_WINDOW);
+    settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE)
+        .putInt(HttpRequestParser.MAX_HEADER_SIZE);
+    settings.flip();
+    queueFrame(SETTINGS, 0, 0, settings);
+    queueWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+  }
+
+  private void reset(int streamId, int errorCode) {
+    ByteBuffer payload = ByteBuffer.allocate(4).putInt(errorCode);
+    payload.flip();
+    queueFrame(RST_STREAM, 0, streamId, payload);
+    Stream stream = streams.remove(streamId);
+    if (stream != null) {
+      closeFile(stream);
+    }
+  }
+
+  private void goAway(int errorCode) {
+    ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(errorCode);
+    payload.flip();
+    queueFrame(GOAWAY, 0, 0, payload);
+    close();
+    closed = true;
+  }
+
+  private void queueWindowUpdate(int streamId, int increment) {
+    ByteBuffer payload = ByteBuffer.allocate(4).putInt(increment);
+    payload.flip();
+    queueFrame(WINDOW_UPDATE, 0, streamId, payload);
+  }
+
+  private void queueFrame(int type, int flags, int streamId, ByteBuffer payload) {
+    output.add(frameHeader(payload.remaining(), type, flags, streamId));
+    if (payload.hasRemaining()) {
+      output.add(payload);
+    }
+  }
+
+  private static ByteBuffer frameHeader(int length, int type, int flags, int streamId) {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    header.put((byte) type).put((byte) flags).putInt(streamId);
+    header.flip();
+    return header;
+  }
+
+  /**
+   * Strips the padding of a DATA or HEADERS frame.
+   */
+  private static ByteBuffer unpad(int flags, int streamId, ByteBuffer payload)
+      throws Http2Exception {
+    if ((flags & FLAG_PADDED) == 0) {
+      return payload;
+    }
+    if (!payload.hasRemaining()) {
+      throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, 0, "Missing pad length");
+    }
+    int padding = payload.get() & 0xff;
+    if (padding > payload.remaining()) {
+      throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, 0, "Padding too long");
+    }
+    payload.limit(payload.limit() - padding);
+    return payload;
+  }
+
+  /**
+   * Appends to a growing heap buffer in write mode.
+   */
+  private static ByteBuffer append(ByteBuffer target, ByteBuffer bytes) {
+    if (target == null) {
+      target = ByteBuffer.allocate(Math.max(bytes.remaining(), 1024));
+    } else if (target.remaining() < bytes.remaining()) {
+      ByteBuffer bigger = ByteBuffer.allocate(
+          Math.max(target.capacity() * 2, target.position() + bytes.remaining()));
+      target.flip();
+      bigger.put(target);
+      target = bigger;
+    }
+    target.put(bytes);
+    return target;
+  }
+
+  private static ByteBuffer copy(ByteBuffer bytes) {
+    ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+    copy.put(bytes);
+    copy.flip();
+    return copy;
+  }
+
+  private static boolean endsWithEmptyLine(StringBuilder text) {
+    int length = text.length();
+    return length >= 4 && text.charAt(length - 4) == '\r' && text.charAt(length - 3) == '\n'
+        && text.charAt(length - 2) == '\r' && text.charAt(length - 1) == '\n';
+  }
+
+  /**
+   * Field names have to be lower case, and neither names nor values may
+   * contain anything that would break the HTTP/1.1 request they end up in.
+   */
+  private static boolean validField(String name, String value) {
+    if (name.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c <= ' ' || c >= 0x7f || (c >= 'A' && c <= 'Z') || (c == ':' && i > 0)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\r' || c == '\n' || c == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Http2Exception malformed(Stream stream, String message) {
+    return new Http2Exception(Http2Exception.PROTOCOL_ERROR, stream.id, message);
+  }
+
+  private static void closeFile(Stream stream) {
+    if (stream.upload != null) {
+      // Removes what an upload cut off by a reset or a closed connection
+      // wrote, a finished one is left alone.
+      stream.upload.abort();
+      stream.upload = null;
+    }
+    if (stream.file != null) {
+      try {
+        stream.file.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      stream.file = null;
+    }
+  }
+}
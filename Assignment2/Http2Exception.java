@@ -0,0 +1,46 @@
+import java.io.IOException;
+
+/**
+ * Thrown while reading HTTP/2 frames or header blocks, it carries the error
+ * code of RFC 9113 and the stream it concerns. Errors on stream 0 end the
+ * whole connection with a GOAWAY, the others only reset their stream.
+ */
+public class Http2Exception extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int INTERNAL_ERROR = 0x2;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int STREAM_CLOSED = 0x5;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int COMPRESSION_ERROR = 0x9;
+  static final int ENHANCE_YOUR_CALM = 0xb;
+
+  private final int errorCode;
+  private final int streamId;
+
+  /**
+   * Constructor for the exception.
+   *
+   * @param errorCode The error code to send.
+   *
+   * @param streamId  The stream to reset, or 0 for the connection.
+   *
+   * @param message   What was wrong.
+   */
+  public Http2Exception(int errorCode, int streamId, String message) {
+    super(message);
+    this.errorCode = errorCode;
+    this.streamId = streamId;
+  }
+
+  public int getErrorCode() {
+    return errorCode;
+  }
+
+  public int getStreamId() {
+    return streamId;
+  }
+}
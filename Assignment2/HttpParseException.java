@@ -0,0 +1,28 @@
+import java.io.IOException;
+
+/**
+ * Thrown by the HttpRequestParser when a request can't be parsed, it carries
+ * the status code the client should get before the connection is closed.
+ */
+public class HttpParseException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final WebServer.ResponseStatusCode statusCode;
+
+  /**
+   * Constructor for the exception.
+   *
+   * @param statusCode The status code to answer with.
+   *
+   * @param message    What was wrong with the request.
+   */
+  public HttpParseException(WebServer.ResponseStatusCode statusCode, String message) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  public WebServer.ResponseStatusCode getStatusCode() {
+    return statusCode;
+  }
+}
@@ -0,0 +1,218 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A parsed request, which is only a set of offsets into the buffer the
+ * HttpRequestParser filled. Nothing is turned into a String until a handler
+ * asks for it, and the object is reused for the next request on the same
+ * connection, so it is only valid until the parser consumes the request.
+ */
+public final class HttpRequest {
+
+  byte[] buf;
+  int methodStart;
+  int methodEnd;
+  int targetStart;
+  int targetEnd;
+  int versionStart;
+  int versionEnd;
+  int headerCount;
+  int[] nameStart = new int[16];
+  int[] nameEnd = new int[16];
+  int[] valueStart = new int[16];
+  int[] valueEnd = new int[16];
+  int bodyStart;
+  int bodyEnd;
+  boolean keepAlive;
+  MultipartParser upload;
+
+  void reset() {
+    headerCount = 0;
+    upload = null;
+    bodyStart = 0;
+    bodyEnd = 0;
+    keepAlive = true;
+  }
+
+  void addHeader(int nameFrom, int nameTo, int valueFrom, int valueTo) {
+    if (headerCount == nameStart.length) {
+      int size = headerCount * 2;
+      nameStart = Arrays.copyOf(nameStart, size);
+      nameEnd = Arrays.copyOf(nameEnd, size);
+      valueStart = Arrays.copyOf(valueStart, size);
+      valueEnd = Arrays.copyOf(valueEnd, size);
+    }
+    nameStart[headerCount] = nameFrom;
+    nameEnd[headerCount] = nameTo;
+    valueStart[headerCount] = valueFrom;
+    valueEnd[headerCount] = valueTo;
+    headerCount++;
+  }
+
+  /**
+   * Compares the method without allocating, ignoring case like the handlers
+   * always did.
+   *
+   * @param method The method name, i.e. "GET".
+   *
+   * @return True if this request uses that method.
+   */
+  public boolean isMethod(String method) {
+    return regionEquals(methodStart, methodEnd, method);
+  }
+
+  public String getMethod() {
+    return string(methodStart, methodEnd);
+  }
+
+  /**
+   * @return The request target, i.e. "/a/index.html".
+   */
+  public String getTarget() {
+    return string(targetStart, targetEnd);
+  }
+
+  /**
+   * @return The request line as it was sent, for logging.
+   */
+  public String getRequestLine() {
+    return string(methodStart, versionEnd);
+  }
+
+  /**
+   * Copies the request line without creating a String, for the access log.
+   *
+   * @param target Where to copy it to, a longer line is cut off.
+   *
+   * @return The number of bytes copied.
+   */
+  int copyRequestLine(byte[] target) {
+    int length = Math.min(versionEnd - methodStart, target.length);
+    System.arraycopy(buf, methodStart, target, 0, length);
+    return length;
+  }
+
+  /**
+   * Looks up a header, names are compared ignoring case. When a header is sent
+   * several times the first one wins.
+   *
+   * @param name The header name.
+   *
+   * @return The value without surrounding whitespace, or null.
+   */
+  public String getHeader(String name) {
+    for (int i = 0; i < headerCount; i++) {
+      if (regionEquals(nameStart[i], nameEnd[i], name)) {
+        return string(valueStart[i], valueEnd[i]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return True if this is "PRI * HTTP/2.0", the start of the preface a
+   *         client sends when it speaks HTTP/2 right away.
+   */
+  public boolean isHttp2Preface() {
+    return regionEquals(methodStart, methodEnd, "PRI")
+        && regionEquals(versionStart, versionEnd, "HTTP/2.0");
+  }
+
+  /**
+   * @return True if the client asks to switch the connection to HTTP/2 (h2c)
+   *         and sent its settings along.
+   */
+  public boolean isH2cUpgrade() {
+    boolean upgrade = false;
+    boolean settings = false;
+    for (int i = 0; i < headerCount; i++) {
+      if (regionEquals(nameStart[i], nameEnd[i], "upgrade")) {
+        upgrade |= valueHasToken(i, "h2c");
+      } else if (regionEquals(nameStart[i], nameEnd[i], "http2-settings")) {
+        settings = true;
+      }
+    }
+    return upgrade && settings;
+  }
+
+  /**
+   * @return False if the connection has to be closed after the response.
+   */
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * @return The parser the body of a multipart/form-data POST was streamed
+   *         into, the body itself is empty then. Null for other requests.
+   */
+  public MultipartParser getUpload() {
+    return upload;
+  }
+
+  public int getBodyLength() {
+    return bodyEnd - bodyStart;
+  }
+
+  /**
+   * @return The (de-chunked) body, a read-only view of the buffer.
+   */
+  public ByteBuffer getBody() {
+    return ByteBuffer.wrap(buf, bodyStart, bodyEnd - bodyStart).asReadOnlyBuffer();
+  }
+
+  boolean regionEquals(int from, int to, String value) {
+    if (to - from != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      int a = buf[from + i] & 0xff;
+      int b = value.charAt(i);
+      if (a != b && toLower(a) != toLower(b)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks a comma separated header value for a token, ignoring case.
+   *
+   * @param header The index of the header.
+   *
+   * @param token  The token, i.e. "close".
+   *
+   * @return True if the value lists the token.
+   */
+  boolean valueHasToken(int header, String token) {
+    int from = valueStart[header];
+    int to = valueEnd[header];
+    int start = from;
+    for (int i = from; i <= to; i++) {
+      if (i == to || buf[i] == ',') {
+        int s = start;
+        int e = i;
+        while (s < e && (buf[s] == ' ' || buf[s] == '\t')) {
+          s++;
+        }
+        while (e > s && (buf[e - 1] == ' ' || buf[e - 1] == '\t')) {
+          e--;
+        }
+        if (regionEquals(s, e, token)) {
+          return true;
+        }
+        start = i + 1;
+      }
+    }
+    return false;
+  }
+
+  private String string(int from, int to) {
+    return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+  }
+
+  private static int toLower(int c) {
+    return c >= 'A' && c <= 'Z' ? c + 32 : c;
+  }
+}
@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.1 request parser working on the connection's own heap
+ * ByteBuffer. It is fed whatever bytes have arrived so far, remembers where it
+ * stopped, and reports a request as soon as its headers and body (fixed length
+ * or chunked) are complete. Whatever follows is left in the buffer for the
+ * next, pipelined, request.
+ *
+ * <p>The buffer is in write mode the whole time: bytes 0 to position() are the
+ * ones received so far.
+ *
+ * <p>The body of a multipart/form-data POST is not collected. It goes to the
+ * MultipartParser of the request as it arrives and is dropped from the buffer
+ * right away, so an upload of any size only takes a buffer's worth of heap
+ * and MAX_BODY_SIZE does not apply to it.
+ */
+public final class HttpRequestParser {
+
+  static final int INITIAL_BUFFER_SIZE = 4096;
+  static final int MAX_HEADER_SIZE = 64 * 1024;
+  static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+  private static final int MAX_BUFFER_SIZE = 2 * (MAX_HEADER_SIZE + MAX_BODY_SIZE);
+  private static final int MAX_HEADERS = 100;
+  static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n"
+      .getBytes(StandardCharsets.ISO_8859_1);
+
+  private enum State {
+    REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, COMPLETE
+  }
+
+  private final HttpRequest request = new HttpRequest();
+  private State state = State.REQUEST_LINE;
+  private int cursor;
+  private int lineStart;
+  private long remaining;
+  private boolean sendContinue;
+
+  public HttpRequestParser() {
+    request.reset();
+  }
+
+  /**
+   * Parses as far as the buffered bytes go.
+   *
+   * @param in The connection buffer in write mode.
+   *
+   * @return True once a whole request is available through getRequest.
+   *
+   * @throws HttpParseException In case the request is malformed or too big.
+   */
+  public boolean parse(ByteBuffer in) throws HttpParseException {
+    byte[] buf = in.array();
+    int limit = in.position();
+    request.buf = buf;
+
+    while (state != State.COMPLETE) {
+      switch (state) {
+        case REQUEST_LINE:
+        case HEADERS:
+        case CHUNK_SIZE:
+        case CHUNK_END:
+        case TRAILER:
+          int lineEnd = findLineEnd(buf, limit);
+          if (lineEnd < 0) {
+            if (limit - lineStart > MAX_HEADER_SIZE) {
+              throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+                  "Line too long");
+            }
+            return false;
+          }
+          onLine(buf, lineStart, trimCr(buf, lineStart, lineEnd));
+          lineStart = lineEnd + 1;
+          cursor = lineStart;
+          break;
+        case BODY:
+          if (request.upload != null) {
+            limit = stream(in, limit);
+            if (remaining > 0) {
+              return false;
+            }
+            state = State.COMPLETE;
+            break;
+          }
+          if (limit - cursor < remaining) {
+            return false;
+          }
+          cursor += (int) remaining;
+          request.bodyEnd = cursor;
+          lineStart = cursor;
+          state = State.COMPLETE;
+          break;
+        case CHUNK_DATA:
+          if (request.upload != null) {
+            limit = stream(in, limit);
+            if (remaining > 0) {
+              return false;
+            }
+            state = State.CHUNK_END;
+            break;
+          }
+          if (limit - cursor < remaining) {
+            return false;
+          }
+          // Chunks are moved down next to each other, so the body ends up in one
+          // piece right after the headers. The decoded body never gets ahead of
+          // the bytes still to be decoded.
+          System.arraycopy(buf, cursor, buf, request.bodyEnd, (int) remaining);
+          request.bodyEnd += (int) remaining;
+          cursor += (int) remaining;
+          lineStart = cursor;
+          state = State.CHUNK_END;
+          break;
+        default:
+          break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The request parsed by the last successful call to parse.
+   */
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * @return True once the headers of the current request are in and its body
+   *         is still being read.
+   */
+  public boolean isReadingBody() {
+    return state != State.REQUEST_LINE && state != State.HEADERS && state != State.COMPLETE;
+  }
+
+  /**
+   * Tells once per request whether the client sent "Expect: 100-continue" and
+   * is waiting for an interim response before it sends the body.
+   *
+   * @return True if CONTINUE_RESPONSE should be written now.
+   */
+  public boolean takeContinue() {
+    boolean result = sendContinue;
+    sendContinue = false;
+    return result;
+  }
+
+  /**
+   * Drops the handled request from the buffer and gets ready for the next one.
+   * A buffer that grew for a big request is swapped for a small one again.
+   *
+   * @param in The connection buffer in write mode.
+   *
+   * @return The buffer to keep reading into.
+   */
+  public ByteBuffer consume(ByteBuffer in) {
+    int end = lineStart;
+    in.flip();
+    in.position(end);
+    if (in.capacity() > INITIAL_BUFFER_SIZE && in.remaining() <= INITIAL_BUFFER_SIZE) {
+      ByteBuffer small = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+      small.put(in);
+      in = small;
+    } else {
+      in.compact();
+    }
+
+    abort();
+    state = State.REQUEST_LINE;
+    cursor = 0;
+    lineStart = 0;
+    remaining = 0;
+    sendContinue = false;
+    request.reset();
+    return in;
+  }
+
+  /**
+   * Removes the file an upload was writing when the request did not get to
+   * the handler, because the connection ended or the body was malformed. A
+   * finished upload is left alone.
+   */
+  public void abort() {
+    if (request.upload != null) {
+      request.upload.abort();
+      request.upload = null;
+    }
+  }
+
+  /**
+   * Makes sure there is room left to read into, doubling a full buffer.
+   *
+   * @param in The connection buffer in write mode.
+   *
+   * @return The same buffer, or a bigger copy of it.
+   *
+   * @throws HttpParseException In case the buffer would get too big.
+   */
+  public static ByteBuffer ensureRoom(ByteBuffer in) throws HttpParseException {
+    if (in.hasRemaining()) {
+      return in;
+    }
+    if (in.capacity() >= MAX_BUFFER_SIZE) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.PAYLOAD_TOO_LARGE_413,
+          "Request too large");
+    }
+    ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_BUFFER_SIZE));
+    in.flip();
+    bigger.put(in);
+    return bigger;
+  }
+
+  private void onLine(byte[] buf, int from, int to) throws HttpParseException {
+    switch (state) {
+      case REQUEST_LINE:
+        // Empty lines before a request are allowed, i.e. a stray CRLF after a body.
+        if (from != to) {
+          parseRequestLine(buf, from, to);
+          state = State.HEADERS;
+        }
+        break;
+      case HEADERS:
+        if (from == to) {
+          endOfHeaders();
+        } else {
+          parseHeader(buf, from, to);
+        }
+        break;
+      case CHUNK_SIZE:
+        long size = parseChunkSize(buf, from, to);
+        if (size == 0) {
+          state = State.TRAILER;
+        } else {
+          if (request.upload == null
+              && request.bodyEnd - request.bodyStart + size > MAX_BODY_SIZE) {
+            throw new HttpParseException(WebServer.ResponseStatusCode.PAYLOAD_TOO_LARGE_413,
+                "Body too large");
+          }
+          remaining = size;
+          state = State.CHUNK_DATA;
+        }
+        break;
+      case CHUNK_END:
+        if (from != to) {
+          throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+              "Missing CRLF after chunk");
+        }
+        state = State.CHUNK_SIZE;
+        break;
+      case TRAILER:
+        // Trailer fields are read past and ignored.
+        if (from == to) {
+          state = State.COMPLETE;
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void parseRequestLine(byte[] buf, int from, int to) throws HttpParseException {
+    int firstSpace = indexOf(buf, from, to, (byte) ' ');
+    int secondSpace = firstSpace < 0 ? -1 : indexOf(buf, firstSpace + 1, to, (byte) ' ');
+    if (firstSpace <= from || secondSpace <= firstSpace + 1 || secondSpace == to - 1) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Malformed request line");
+    }
+    request.methodStart = from;
+    request.methodEnd = firstSpace;
+    request.targetStart = firstSpace + 1;
+    request.targetEnd = secondSpace;
+    request.versionStart = secondSpace + 1;
+    request.versionEnd = to;
+
+    if (request.regionEquals(request.versionStart, to, "HTTP/1.1")) {
+      request.keepAlive = true;
+    } else if (request.regionEquals(request.versionStart, to, "HTTP/1.0")) {
+      request.keepAlive = false;
+    } else if (request.isHttp2Preface()) {
+      // Parsed like a request without headers, the engines see it and hand the
+      // connection over to Http2Connection.
+      request.keepAlive = true;
+    } else {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Unsupported HTTP version");
+    }
+  }
+
+  private void parseHeader(byte[] buf, int from, int to) throws HttpParseException {
+    if (to > MAX_HEADER_SIZE) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Headers too large");
+    }
+    int colon = indexOf(buf, from, to, (byte) ':');
+    if (colon <= from || buf[from] == ' ' || buf[from] == '\t'
+        || request.headerCount == MAX_HEADERS) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Malformed header");
+    }
+    int valueFrom = colon + 1;
+    int valueTo = to;
+    while (valueFrom < valueTo && (buf[valueFrom] == ' ' || buf[valueFrom] == '\t')) {
+      valueFrom++;
+    }
+    while (valueTo > valueFrom && (buf[valueTo - 1] == ' ' || buf[valueTo - 1] == '\t')) {
+      valueTo--;
+    }
+    request.addHeader(from, colon, valueFrom, valueTo);
+  }
+
+  /**
+   * Decides how the body is framed and what happens to the connection once
+   * the headers are in.
+   */
+  private void endOfHeaders() throws HttpParseException {
+    boolean chunked = false;
+    boolean expectContinue = false;
+    long contentLength = -1;
+
+    for (int i = 0; i < request.headerCount; i++) {
+      int from = request.nameStart[i];
+      int to = request.nameEnd[i];
+      if (request.regionEquals(from, to, "connection")) {
+        if (request.valueHasToken(i, "close")) {
+          request.keepAlive = false;
+        } else if (request.valueHasToken(i, "keep-alive")) {
+          request.keepAlive = true;
+        }
+      } else if (request.regionEquals(from, to, "transfer-encoding")) {
+        if (!request.valueHasToken(i, "chunked")) {
+          throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+              "Unsupported transfer coding");
+        }
+        chunked = true;
+      } else if (request.regionEquals(from, to, "content-length")) {
+        long length = parseDecimal(request.buf, request.valueStart[i], request.valueEnd[i]);
+        if (contentLength >= 0 && contentLength != length) {
+          throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+              "Conflicting Content-Length");
+        }
+        contentLength = length;
+      } else if (request.regionEquals(from, to, "expect")) {
+        expectContinue = request.valueHasToken(i, "100-continue");
+      }
+    }
+
+    if (chunked && contentLength >= 0) {
+      // RFC 9112 6.1, a proxy in front may have framed the body by the other
+      // header and see a different next request: request smuggling.
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Both Transfer-Encoding and Content-Length");
+    }
+    request.bodyStart = lineStart + lineLength();
+    request.bodyEnd = request.bodyStart;
+    if (request.isMethod("POST")) {
+      String boundary = MultipartParser.boundary(request.getHeader("content-type"));
+      if (boundary != null) {
+        request.upload = new MultipartParser(boundary, WebServer.UPLOAD_DIRECTORY);
+      }
+    }
+    if (chunked) {
+      state = State.CHUNK_SIZE;
+    } else if (contentLength > 0) {
+      if (contentLength > MAX_BODY_SIZE && request.upload == null) {
+        throw new HttpParseException(WebServer.ResponseStatusCode.PAYLOAD_TOO_LARGE_413,
+            "Body too large");
+      }
+      remaining = contentLength;
+      state = State.BODY;
+    } else {
+      state = State.COMPLETE;
+    }
+    sendContinue = expectContinue && state != State.COMPLETE;
+  }
+
+  /**
+   * Hands the body bytes buffered so far, up to the end of the body or chunk,
+   * to the upload and takes them out of the buffer. Chunk framing in front of
+   * them goes too, so the next bytes are read in where the body started.
+   *
+   * @return The new end of the buffered bytes.
+   */
+  private int stream(ByteBuffer in, int limit) throws HttpParseException {
+    byte[] buf = in.array();
+    int n = (int) Math.min(limit - cursor, remaining);
+    try {
+      request.upload.feed(ByteBuffer.wrap(buf, cursor, n));
+    } catch (HttpParseException e) {
+      abort();
+      throw e;
+    } catch (IOException e) {
+      abort();
+      throw new HttpParseException(WebServer.ResponseStatusCode.INTERNAL_SERVER_ERROR_500,
+          "Upload failed: " + e.getMessage());
+    }
+    // Pipelined bytes after the body move down with the rest.
+    System.arraycopy(buf, cursor + n, buf, request.bodyEnd, limit - cursor - n);
+    limit -= cursor + n - request.bodyEnd;
+    in.position(limit);
+    cursor = request.bodyEnd;
+    lineStart = cursor;
+    remaining -= n;
+    return limit;
+  }
+
+  /**
+   * The body starts right after the empty line, which is one or two bytes
+   * long depending on whether the client sent CRLF or a bare LF.
+   */
+  private int lineLength() {
+    return request.buf[lineStart] == '\r' ? 2 : 1;
+  }
+
+  private static long parseChunkSize(byte[] buf, int from, int to) throws HttpParseException {
+    long size = 0;
+    int digits = 0;
+    for (int i = from; i < to && buf[i] != ';' && buf[i] != ' ' && buf[i] != '\t'; i++) {
+      int digit = Character.digit(buf[i], 16);
+      if (digit < 0 || ++digits > 8) {
+        throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+            "Malformed chunk size");
+      }
+      size = size * 16 + digit;
+    }
+    if (digits == 0) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Malformed chunk size");
+    }
+    return size;
+  }
+
+  private static long parseDecimal(byte[] buf, int from, int to) throws HttpParseException {
+    if (from == to || to - from > 18) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Malformed Content-Length");
+    }
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      if (buf[i] < '0' || buf[i] > '9') {
+        throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+            "Malformed Content-Length");
+      }
+      value = value * 10 + (buf[i] - '0');
+    }
+    return value;
+  }
+
+  private int findLineEnd(byte[] buf, int limit) {
+    for (int i = cursor; i < limit; i++) {
+      if (buf[i] == '\n') {
+        return i;
+      }
+    }
+    cursor = limit;
+    return -1;
+  }
+
+  private static int trimCr(byte[] buf, int from, int lineEnd) {
+    return lineEnd > from && buf[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+  }
+
+  private static int indexOf(byte[] buf, int from, int to, byte value) {
+    for (int i = from; i < to; i++) {
+      if (buf[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
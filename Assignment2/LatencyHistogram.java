@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram. Values are kept
+ * in microseconds in log-linear buckets: 16 sub-buckets for every power of two,
+ * which keeps the relative error under about 6% from one microsecond up to
+ * hours. Recording is a few shifts and one atomic increment, and allocates
+ * nothing.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values above 2^36 microseconds (19 hours) all end up in the last bucket.
+  private static final int MAX_EXPONENT = 36;
+  private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Records one measurement.
+   *
+   * @param nanos The measured time in nanoseconds.
+   */
+  public void record(long nanos) {
+    counts.incrementAndGet(index(Math.max(0, nanos) / 1000));
+    count.increment();
+    sumNanos.add(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSumNanos() {
+    return sumNanos.sum();
+  }
+
+  /**
+   * Counts the measurements up to a bound, for the cumulative buckets of the
+   * Prometheus format.
+   *
+   * @param micros The bound in microseconds.
+   *
+   * @return The number of measurements whose bucket lies completely below or
+   *         at the bound.
+   */
+  public long countAtOrBelow(long micros) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS && upperBound(i) - 1 <= micros; i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * @param percentile The percentile, i.e. 99.0.
+   *
+   * @return The highest value the percentile can hold in microseconds, or 0
+   *         if nothing was recorded.
+   */
+  public long valueAtPercentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= wanted) {
+        return upperBound(i) - 1;
+      }
+    }
+    return upperBound(BUCKETS - 1) - 1;
+  }
+
+  static int index(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return The first value that no longer falls into the bucket.
+   */
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index + 1;
+    }
+    int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket + 1) << shift;
+  }
+}
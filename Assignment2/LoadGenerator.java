@@ -0,0 +1,431 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Load generator for the web server. It keeps a number of keep-alive
+ * connections busy with GET requests for the files of a public directory,
+ * optionally mixed with multipart uploads, and reports the throughput and the
+ * latency percentiles.
+ *
+ * <p>Without a rate every connection is a closed loop and sends its next
+ * request as soon as the last response is in. With a rate the requests are
+ * sent on a fixed schedule (open loop) and their latency is measured from the
+ * time they were due, not from the time they were sent. A stalled server then
+ * shows up in the percentiles instead of just delaying the requests that
+ * would have measured it (coordinated omission).
+ *
+ * <p>usage: java LoadGenerator [options] host:port
+ *
+ * <pre>
+ *   -c connections   concurrent connections (default 50)
+ *   -d seconds       measured duration (default 30)
+ *   -w seconds       warmup before measuring (default 5)
+ *   -r requests/s    total rate for the open loop, closed loop if left out
+ *   -p directory     public directory the requested files are taken from (default public)
+ *   -u percent       share of the requests that are uploads (default 0)
+ *   -s bytes         size of an uploaded file (default 65536)
+ * </pre>
+ */
+public final class LoadGenerator {
+
+  private static final String BOUNDARY = "----loadgeneratorboundary";
+  // Uploads cycle through a few names, so the upload folder does not grow.
+  private static final int UPLOAD_NAMES = 4;
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final int READ_TIMEOUT_MILLIS = 30_000;
+
+  private final String host;
+  private final int port;
+  private final int connections;
+  private final long durationNanos;
+  private final long warmupNanos;
+  private final double rate;
+  private final List<byte[]> gets;
+  private final int uploadPercent;
+  private final byte[][] uploads;
+
+  // Time from when a request was due to its response, only differs from the
+  // service time in the open loop.
+  private final LatencyHistogram latency = new LatencyHistogram();
+  // Time from when a request was sent to its response.
+  private final LatencyHistogram serviceTime = new LatencyHistogram();
+  private final LongAdder[] statusClasses = new LongAdder[6];
+  private final LongAdder errors = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder uploadsDone = new LongAdder();
+  private volatile long measureStart;
+  private volatile long end;
+
+  private LoadGenerator(String host, int port, int connections, long durationNanos,
+      long warmupNanos, double rate, List<String> paths, int uploadPercent, int uploadSize) {
+    this.host = host;
+    this.port = port;
+    this.connections = connections;
+    this.durationNanos = durationNanos;
+    this.warmupNanos = warmupNanos;
+    this.rate = rate;
+    this.uploadPercent = uploadPercent;
+    for (int i = 0; i < statusClasses.length; i++) {
+      statusClasses[i] = new LongAdder();
+    }
+
+    // All requests are encoded up front, sending one is a single write.
+    gets = new ArrayList<>();
+    for (String path : paths) {
+      gets.add(ascii("GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port
+          + "\r\nConnection: keep-alive\r\n\r\n"));
+    }
+    uploads = new byte[UPLOAD_NAMES][];
+    for (int i = 0; i < UPLOAD_NAMES; i++) {
+      uploads[i] = upload("loadgen" + i + ".bin", uploadSize);
+    }
+  }
+
+  /**
+   * Parses the options, runs the load and prints the report.
+   *
+   * @param args See the class comment.
+   *
+   * @throws Exception In case the options are wrong or the run is interrupted.
+   */
+  public static void main(String[] args) throws Exception {
+    int connections = 50;
+    long duration = 30;
+    long warmup = 5;
+    double rate = 0;
+    Path root = Paths.get("public");
+    int uploadPercent = 0;
+    int uploadSize = 64 * 1024;
+    String target = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String option = args[i];
+      if (!option.startsWith("-")) {
+        target = option;
+        continue;
+      }
+      if (i + 1 == args.length) {
+        usage("missing value for " + option);
+      }
+      String value = args[++i];
+      switch (option) {
+        case "-c":
+          connections = Integer.parseInt(value);
+          break;
+        case "-d":
+          duration = Long.parseLong(value);
+          break;
+        case "-w":
+          warmup = Long.parseLong(value);
+          break;
+        case "-r":
+          rate = Double.parseDouble(value);
+          break;
+        case "-p":
+          root = Paths.get(value);
+          break;
+        case "-u":
+          uploadPercent = Integer.parseInt(value);
+          break;
+        case "-s":
+          uploadSize = Integer.parseInt(value);
+          break;
+        default:
+          usage("unknown option " + option);
+      }
+    }
+    if (target == null || target.indexOf(':') < 0) {
+      usage("host:port is missing");
+    }
+
+    List<String> paths = publicPaths(root);
+    if (paths.isEmpty()) {
+      usage("no files under " + root);
+    }
+    int colon = target.lastIndexOf(':');
+    LoadGenerator generator = new LoadGenerator(target.substring(0, colon),
+        Integer.parseInt(target.substring(colon + 1)), connections,
+        TimeUnit.SECONDS.toNanos(duration), TimeUnit.SECONDS.toNanos(warmup), rate, paths,
+        uploadPercent, uploadSize);
+    System.out.println(generator.describe(paths.size()));
+    generator.run();
+    System.out.println(generator.report());
+  }
+
+  private static void usage(String problem) {
+    System.out.println(problem);
+    System.out.println("usage: java LoadGenerator [-c connections] [-d seconds] [-w seconds]"
+        + " [-r requests/s] [-p public directory] [-u upload percent] [-s upload bytes]"
+        + " host:port");
+    System.exit(1);
+  }
+
+  private String describe(int files) {
+    return connections + " connections, " + (rate > 0 ? "open loop at " + rate + " requests/s"
+        : "closed loop") + ", " + files + " files, " + uploadPercent + "% uploads, "
+        + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s warmup, "
+        + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s measured";
+  }
+
+  private void run() throws InterruptedException {
+    long start = System.nanoTime();
+    measureStart = start + warmupNanos;
+    end = measureStart + durationNanos;
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      int index = i;
+      Thread thread = new Thread(() -> connection(index, start), "load-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  /**
+   * The loop of one connection, reconnecting whenever the server closes it or
+   * something fails.
+   *
+   * @param index The number of the connection, staggers the open loop.
+   *
+   * @param start When the run started.
+   */
+  private void connection(int index, long start) {
+    // Every connection sends its share of the rate, the connections are
+    // spread evenly over one interval.
+    long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+    long due = start + index * interval / Math.max(1, connections);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    byte[] response = new byte[8192];
+    Socket socket = null;
+    InputStream in = null;
+
+    while (true) {
+      if (interval > 0) {
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      } else {
+        due = System.nanoTime();
+      }
+      if (due >= end) {
+        break;
+      }
+
+      boolean upload = uploadPercent > 0 && random.nextInt(100) < uploadPercent;
+      byte[] request = upload ? uploads[random.nextInt(UPLOAD_NAMES)]
+          : gets.get(random.nextInt(gets.size()));
+      try {
+        if (socket == null) {
+          socket = new Socket();
+          socket.setTcpNoDelay(true);
+          socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+          socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+          in = new BufferedInputStream(socket.getInputStream());
+        }
+        long sent = System.nanoTime();
+        OutputStream out = socket.getOutputStream();
+        out.write(request);
+        out.flush();
+        boolean keepAlive = readResponse(in, response, sent >= measureStart);
+        long done = System.nanoTime();
+
+        if (sent >= measureStart) {
+          latency.record(done - due);
+          serviceTime.record(done - sent);
+          if (upload) {
+            uploadsDone.increment();
+          }
+        }
+        if (!keepAlive) {
+          close(socket);
+          socket = null;
+        }
+      } catch (IOException e) {
+        if (System.nanoTime() >= measureStart) {
+          errors.increment();
+        }
+        close(socket);
+        socket = null;
+      }
+      due += interval;
+    }
+    close(socket);
+  }
+
+  /**
+   * Reads one response, only looking at what it takes to find its end.
+   *
+   * @param in       The connection.
+   *
+   * @param buffer   Scratch space, the body is read into it and dropped.
+   *
+   * @param measured Whether the status and size are counted.
+   *
+   * @return False if the server closes the connection after it.
+   *
+   * @throws IOException In case the response is cut off or malformed.
+   */
+  private boolean readResponse(InputStream in, byte[] buffer, boolean measured)
+      throws IOException {
+    String statusLine = readLine(in);
+    if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+      throw new IOException("Bad status line: " + statusLine);
+    }
+    int status = Integer.parseInt(statusLine.substring(9, 12));
+    long length = 0;
+    boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+    long headerBytes = statusLine.length() + 2;
+
+    String line;
+    while (!(line = readLine(in)).isEmpty()) {
+      headerBytes += line.length() + 2;
+      int colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+      String name = line.substring(0, colon).trim();
+      String value = line.substring(colon + 1).trim();
+      if (name.equalsIgnoreCase("Content-Length")) {
+        length = Long.parseLong(value);
+      } else if (name.equalsIgnoreCase("Connection")) {
+        keepAlive = !value.equalsIgnoreCase("close");
+      }
+    }
+    if (status == 100) {
+      return readResponse(in, buffer, measured);
+    }
+
+    long left = status == 304 ? 0 : length;
+    while (left > 0) {
+      int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+      if (n == -1) {
+        throw new IOException("Response cut off");
+      }
+      left -= n;
+    }
+    if (measured) {
+      statusClasses[Math.min(status / 100, statusClasses.length - 1)].increment();
+      bytesIn.add(headerBytes + 2 + length);
+    }
+    return keepAlive;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new IOException("Connection closed");
+      }
+      if (b != '\r') {
+        line.append((char) b);
+      }
+    }
+    return line.toString();
+  }
+
+  private String report() {
+    long requests = latency.getCount();
+    double seconds = durationNanos / 1e9;
+    StringBuilder out = new StringBuilder();
+    out.append(String.format("%d requests (%d uploads), %d errors in %.1f s%n", requests,
+        uploadsDone.sum(), errors.sum(), seconds));
+    out.append(String.format("throughput: %.1f requests/s, %.2f MB/s received%n",
+        requests / seconds, bytesIn.sum() / seconds / 1e6));
+    out.append("status: ");
+    for (int i = 1; i < statusClasses.length; i++) {
+      out.append(i).append("xx=").append(statusClasses[i].sum()).append(' ');
+    }
+    out.append(String.format("%n%-10s %14s %14s%n", "percentile",
+        rate > 0 ? "latency ms" : "", "service ms"));
+    for (double percentile : new double[] {50, 90, 99, 99.9, 99.99, 100}) {
+      out.append(String.format("%-10s %14s %14.3f%n", percentile == 100 ? "max" : percentile,
+          rate > 0 ? String.format("%.3f", latency.valueAtPercentile(percentile) / 1000.0) : "",
+          serviceTime.valueAtPercentile(percentile) / 1000.0));
+    }
+    if (rate > 0) {
+      out.append("latency is measured from when a request was due, corrected for"
+          + " coordinated omission");
+    } else {
+      out.append("closed loop: only the service time is meaningful, use -r for corrected"
+          + " latencies");
+    }
+    return out.toString();
+  }
+
+  /**
+   * @return The URL of every file under the public directory, uploads
+   *         excluded.
+   */
+  private static List<String> publicPaths(Path root) throws IOException {
+    Path upload = root.resolve("upload");
+    try (Stream<Path> files = Files.walk(root)) {
+      return files.filter(Files::isRegularFile).filter(file -> !file.startsWith(upload))
+          .map(file -> {
+            StringBuilder url = new StringBuilder();
+            for (Path part : root.relativize(file)) {
+              url.append('/').append(part);
+            }
+            return url.toString().replace(" ", "%20");
+          }).sorted().collect(Collectors.toList());
+    }
+  }
+
+  private byte[] upload(String fileName, int size) {
+    byte[] head = ascii("--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"\r\n"
+        + "Content-Type: application/octet-stream\r\n\r\n");
+    byte[] tail = ascii("\r\n--" + BOUNDARY + "--\r\n");
+    byte[] header = ascii("POST /upload HTTP/1.1\r\nHost: " + host + ":" + port
+        + "\r\nConnection: keep-alive\r\nContent-Type: multipart/form-data; boundary=" + BOUNDARY
+        + "\r\nContent-Length: " + (head.length + size + tail.length) + "\r\n\r\n");
+
+    byte[] request = new byte[header.length + head.length + size + tail.length];
+    System.arraycopy(header, 0, request, 0, header.length);
+    System.arraycopy(head, 0, request, header.length, head.length);
+    // Content without CR, so the boundary can't show up in it.
+    int offset = header.length + head.length;
+    for (int i = 0; i < size; i++) {
+      byte b = (byte) (i * 31 + (i >>> 8));
+      request[offset + i] = b == '\r' ? 0 : b;
+    }
+    System.arraycopy(tail, 0, request, offset + size, tail.length);
+    return request;
+  }
+
+  private static void close(Socket socket) {
+    if (socket == null) {
+      return;
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing left to do with it.
+    }
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
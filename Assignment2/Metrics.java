@@ -0,0 +1,340 @@
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the web server, shared by all engines. Counters are striped
+ * LongAdders and latencies go into LatencyHistograms, so recording on the hot
+ * path never blocks and allocates nothing. The numbers are read through
+ * scrape (Prometheus text format, served on /metrics) and through JMX.
+ */
+public final class Metrics implements MetricsMXBean {
+
+  static final String PATH = "/metrics";
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // Bucket bounds of the exported histograms, in seconds.
+  private static final String[] BOUNDS = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025",
+      "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+
+  private static final Metrics INSTANCE = new Metrics();
+
+  private final Map<WebServer.ResponseStatusCode, LatencyHistogram> latencies = new EnumMap<>(
+      WebServer.ResponseStatusCode.class);
+  private final LatencyHistogram allLatencies = new LatencyHistogram();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder acceptedConnections = new LongAdder();
+  private final LongAdder activeConnections = new LongAdder();
+  private final LongAdder rejectedConnections = new LongAdder();
+  private final Map<Deadline, LongAdder> timedOutConnections = new EnumMap<>(Deadline.class);
+  private volatile ThreadPoolExecutor executor;
+  private volatile StaticFileCache cache;
+  private volatile AccessLog accessLog;
+  private volatile AdmissionControl admission;
+
+  private Metrics() {
+    // Every status code gets its histogram up front, recording never has to.
+    for (WebServer.ResponseStatusCode statusCode : WebServer.ResponseStatusCode.values()) {
+      latencies.put(statusCode, new LatencyHistogram());
+    }
+    for (Deadline deadline : Deadline.values()) {
+      timedOutConnections.put(deadline, new LongAdder());
+    }
+  }
+
+  public static Metrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records a handled request.
+   *
+   * @param statusCode The status code it was answered with.
+   *
+   * @param nanos      How long handling it took.
+   */
+  public void recordRequest(WebServer.ResponseStatusCode statusCode, long nanos) {
+    latencies.get(statusCode).record(nanos);
+    allLatencies.record(nanos);
+  }
+
+  public void addBytesIn(long bytes) {
+    bytesIn.add(bytes);
+  }
+
+  public void addBytesOut(long bytes) {
+    bytesOut.add(bytes);
+  }
+
+  public void connectionOpened() {
+    acceptedConnections.increment();
+    activeConnections.increment();
+  }
+
+  public void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  public void connectionRejected() {
+    rejectedConnections.increment();
+  }
+
+  public void connectionTimedOut(Deadline deadline) {
+    timedOutConnections.get(deadline).increment();
+  }
+
+  /**
+   * Reports the queue and thread counts of the thread pool engine. Engines
+   * that serve connections without a pool register nothing, and the executor
+   * gauges are left out then.
+   *
+   * @param executor The pool that runs the connections.
+   */
+  public void monitor(ThreadPoolExecutor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Reports the hits, misses and size of the static file cache.
+   *
+   * @param cache The cache.
+   */
+  public void monitor(StaticFileCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Reports how many access log records were written and dropped.
+   *
+   * @param accessLog The access log.
+   */
+  public void monitor(AccessLog accessLog) {
+    this.accessLog = accessLog;
+  }
+
+  /**
+   * Reports the connections admission control rejected and shed.
+   *
+   * @param admission The admission control.
+   */
+  public void monitor(AdmissionControl admission) {
+    this.admission = admission;
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server as
+   * "WebServer:type=Metrics".
+   */
+  public void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("WebServer:type=Metrics"));
+    } catch (JMException e) {
+      e.printStackTrace();
+      System.out.println("Metrics are not available through JMX.");
+    }
+  }
+
+  /**
+   * Takes no lock, the counters are read one by one, so a scrape racing with
+   * requests may be off by the requests in flight. The handler of /metrics
+   * runs it, a monitor there would pin virtual threads.
+   *
+   * @return All metrics in the Prometheus text exposition format.
+   */
+  public String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+
+    header(out, "webserver_request_duration_seconds", "histogram",
+        "Time to handle a request, by status code.");
+    for (Map.Entry<WebServer.ResponseStatusCode, LatencyHistogram> entry : latencies.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      long count = histogram.getCount();
+      if (count == 0) {
+        continue;
+      }
+      String name = entry.getKey().name();
+      String status = "status=\"" + name.substring(name.lastIndexOf('_') + 1) + "\"";
+      for (String bound : BOUNDS) {
+        long micros = Math.round(Double.parseDouble(bound) * 1_000_000);
+        out.append("webserver_request_duration_seconds_bucket{").append(status).append(",le=\"")
+            .append(bound).append("\"} ").append(histogram.countAtOrBelow(micros)).append('\n');
+      }
+      out.append("webserver_request_duration_seconds_bucket{").append(status)
+          .append(",le=\"+Inf\"} ").append(count).append('\n');
+      out.append("webserver_request_duration_seconds_sum{").append(status).append("} ")
+          .append(histogram.getSumNanos() / 1e9).append('\n');
+      out.append("webserver_request_duration_seconds_count{").append(status).append("} ")
+          .append(count).append('\n');
+    }
+
+    counter(out, "webserver_received_bytes_total", "Bytes read from clients.", bytesIn.sum());
+    counter(out, "webserver_sent_bytes_total", "Bytes written to clients.", bytesOut.sum());
+    counter(out, "webserver_connections_accepted_total", "Connections accepted.",
+        acceptedConnections.sum());
+    counter(out, "webserver_connections_rejected_total",
+        "Connections turned away because the server was saturated.", rejectedConnections.sum());
+    gauge(out, "webserver_connections_active", "Connections currently open.",
+        activeConnections.sum());
+    header(out, "webserver_connections_timed_out_total", "counter",
+        "Connections closed because the client missed a deadline, by deadline.");
+    for (Map.Entry<Deadline, LongAdder> entry : timedOutConnections.entrySet()) {
+      out.append("webserver_connections_timed_out_total{deadline=\"")
+          .append(entry.getKey().getLabel()).append("\"} ").append(entry.getValue().sum())
+          .append('\n');
+    }
+
+    ThreadPoolExecutor pool = executor;
+    if (pool != null) {
+      gauge(out, "webserver_executor_active_threads", "Pool threads running a connection.",
+          pool.getActiveCount());
+      gauge(out, "webserver_executor_pool_threads", "Threads in the pool.", pool.getPoolSize());
+      gauge(out, "webserver_executor_max_threads", "Maximum threads of the pool.",
+          pool.getMaximumPoolSize());
+      gauge(out, "webserver_executor_queued_tasks", "Connections waiting for a pool thread.",
+          pool.getQueue().size());
+    }
+
+    StaticFileCache fileCache = cache;
+    if (fileCache != null) {
+      counter(out, "webserver_cache_hits_total", "Requests served from the file cache.",
+          fileCache.getHits());
+      counter(out, "webserver_cache_misses_total", "Requests the file cache could not serve.",
+          fileCache.getMisses());
+      counter(out, "webserver_cache_evictions_total", "Entries evicted to stay within bounds.",
+          fileCache.getEvictions());
+      counter(out, "webserver_cache_invalidations_total", "Entries dropped after a file change.",
+          fileCache.getInvalidations());
+      gauge(out, "webserver_cache_entries", "Entries in the file cache.", fileCache.size());
+      gauge(out, "webserver_cache_bytes", "Bytes held by the file cache.", fileCache.bytes());
+    }
+
+    AccessLog log = accessLog;
+    if (log != null) {
+      counter(out, "webserver_access_log_written_total", "Access log records written.",
+          log.getWritten());
+      counter(out, "webserver_access_log_dropped_total",
+          "Access log records dropped because the writer fell behind.", log.getDropped());
+    }
+
+    AdmissionControl control = admission;
+    if (control != null) {
+      header(out, "webserver_admission_rejected_total", "counter",
+          "Connections answered with 503, by reason.");
+      out.append("webserver_admission_rejected_total{reason=\"connection_limit\"} ")
+          .append(control.getRejectedConnectionLimit()).append('\n');
+      out.append("webserver_admission_rejected_total{reason=\"address_limit\"} ")
+          .append(control.getRejectedAddressLimit()).append('\n');
+      out.append("webserver_admission_rejected_total{reason=\"queue_time\"} ")
+          .append(control.getShed()).append('\n');
+      gauge(out, "webserver_admission_connections", "Connections counted against the limits.",
+          control.getConnections());
+    }
+    return out.toString();
+  }
+
+  @Override
+  public long getRequestCount() {
+    return allLatencies.getCount();
+  }
+
+  @Override
+  public long getLatencyP50Micros() {
+    return allLatencies.valueAtPercentile(50);
+  }
+
+  @Override
+  public long getLatencyP99Micros() {
+    return allLatencies.valueAtPercentile(99);
+  }
+
+  @Override
+  public long getLatencyP999Micros() {
+    return allLatencies.valueAtPercentile(99.9);
+  }
+
+  @Override
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  @Override
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public long getAcceptedConnections() {
+    return acceptedConnections.sum();
+  }
+
+  @Override
+  public long getActiveConnections() {
+    return activeConnections.sum();
+  }
+
+  @Override
+  public long getRejectedConnections() {
+    return rejectedConnections.sum();
+  }
+
+  @Override
+  public long getTimedOutConnections() {
+    long sum = 0;
+    for (LongAdder count : timedOutConnections.values()) {
+      sum += count.sum();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getCacheHits() {
+    StaticFileCache fileCache = cache;
+    return fileCache != null ? fileCache.getHits() : 0;
+  }
+
+  @Override
+  public long getCacheMisses() {
+    StaticFileCache fileCache = cache;
+    return fileCache != null ? fileCache.getMisses() : 0;
+  }
+
+  @Override
+  public double getCacheHitRatio() {
+    long hits = getCacheHits();
+    long total = hits + getCacheMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public int getExecutorActiveCount() {
+    ThreadPoolExecutor pool = executor;
+    return pool != null ? pool.getActiveCount() : 0;
+  }
+
+  @Override
+  public int getExecutorQueueSize() {
+    ThreadPoolExecutor pool = executor;
+    return pool != null ? pool.getQueue().size() : 0;
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    header(out, name, "counter", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder out, String name, String help, long value) {
+    header(out, name, "gauge", help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+}
@@ -0,0 +1,36 @@
+/**
+ * The web server metrics as seen through JMX (jconsole, VisualVM, ...), the
+ * same numbers /metrics serves in the Prometheus format.
+ */
+public interface MetricsMXBean {
+
+  long getRequestCount();
+
+  long getLatencyP50Micros();
+
+  long getLatencyP99Micros();
+
+  long getLatencyP999Micros();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  long getAcceptedConnections();
+
+  long getActiveConnections();
+
+  long getRejectedConnections();
+
+  long getTimedOutConnections();
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  double getCacheHitRatio();
+
+  int getExecutorActiveCount();
+
+  int getExecutorQueueSize();
+}
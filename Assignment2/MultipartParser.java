@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Streaming multipart/form-data parser for uploads. The body is fed in chunks
+ * of any size, the parser scans each chunk for the boundary and writes the
+ * file parts straight to disk through a FileChannel, one big write per chunk.
+ * Only a boundary's length of bytes is ever held back between chunks.
+ *
+ * <p>A file is written under a temporary name of its own and only moved to its
+ * real name once its part is complete. Concurrent uploads of the same name
+ * never write into one file, the last one to finish wins, and an aborted
+ * upload only removes its own temporary file.
+ */
+public final class MultipartParser {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+  private enum State {
+    PREAMBLE, DELIMITER_END, HEADERS, BODY, EPILOGUE
+  }
+
+  private final byte[] delimiter;
+  private final Path directory;
+  // Read mode between calls, holds the bytes not handled yet.
+  private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+  private final List<String> fileNames = new ArrayList<>();
+  private State state = State.PREAMBLE;
+  private FileChannel file;
+  // Where the file being written goes once it is complete, and where it is
+  // written until then.
+  private Path filePath;
+  private Path partPath;
+
+  /**
+   * Constructor for the parser.
+   *
+   * @param boundary  The boundary from the Content-Type header.
+   *
+   * @param directory Where the uploaded files are stored.
+   */
+  public MultipartParser(String boundary, Path directory) {
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    this.directory = directory;
+    // The first boundary has no line break in front of it, pretending there
+    // was one lets every boundary be found the same way.
+    buffer.put(CRLF);
+    buffer.flip();
+  }
+
+  /**
+   * Gets the boundary parameter out of a Content-Type header.
+   *
+   * @param contentType The header value, may be null.
+   *
+   * @return The boundary, or null if this is no multipart/form-data request.
+   */
+  public static String boundary(String contentType) {
+    if (contentType == null
+        || !contentType.regionMatches(true, 0, "multipart/form-data", 0, 19)) {
+      return null;
+    }
+    for (String parameter : contentType.split(";")) {
+      parameter = parameter.trim();
+      if (parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+        String value = parameter.substring(9);
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value.isEmpty() || value.length() > 70 ? null : value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses the next piece of the body.
+   *
+   * @param chunk The bytes, the buffer itself is not modified.
+   *
+   * @throws IOException In case the body is malformed (HttpParseException) or a
+   *                     file can't be written.
+   */
+  public void feed(ByteBuffer chunk) throws IOException {
+    ByteBuffer input = chunk.duplicate();
+    while (input.hasRemaining()) {
+      buffer.compact();
+      int n = Math.min(buffer.remaining(), input.remaining());
+      ByteBuffer piece = input.duplicate();
+      piece.limit(piece.position() + n);
+      buffer.put(piece);
+      input.position(input.position() + n);
+      buffer.flip();
+      process();
+    }
+  }
+
+  /**
+   * Called once the whole body has been fed.
+   *
+   * @return The names of the stored files, in the order they were sent.
+   *
+   * @throws IOException In case the closing boundary never came.
+   */
+  public List<String> finish() throws IOException {
+    if (state != State.EPILOGUE) {
+      abort();
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Incomplete multipart body");
+    }
+    return fileNames;
+  }
+
+  /**
+   * Closes and removes a file that was only partly written.
+   */
+  public void abort() {
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+      Files.deleteIfExists(partPath);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    fileNames.remove(fileNames.size() - 1);
+    file = null;
+  }
+
+  private void process() throws IOException {
+    byte[] buf = buffer.array();
+    while (true) {
+      int from = buffer.position();
+      int to = buffer.limit();
+      switch (state) {
+        case PREAMBLE:
+        case BODY:
+          int match = indexOf(buf, from, to, delimiter);
+          if (match < 0) {
+            // Everything but a possible start of the boundary can go.
+            int safe = Math.max(from, to - delimiter.length + 1);
+            write(from, safe);
+            buffer.position(safe);
+            return;
+          }
+          write(from, match);
+          closeFile();
+          buffer.position(match + delimiter.length);
+          state = State.DELIMITER_END;
+          break;
+        case DELIMITER_END:
+          if (to - from < 2) {
+            return;
+          }
+          if (buf[from] == '-' && buf[from + 1] == '-') {
+            state = State.EPILOGUE;
+          } else if (buf[from] == '\r' && buf[from + 1] == '\n') {
+            state = State.HEADERS;
+          } else {
+            throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+                "Malformed multipart boundary");
+          }
+          buffer.position(from + 2);
+          break;
+        case HEADERS:
+          if (to - from < 2) {
+            return;
+          }
+          int headersEnd;
+          if (buf[from] == '\r' && buf[from + 1] == '\n') {
+            headersEnd = from;
+            buffer.position(from + 2);
+          } else {
+            headersEnd = indexOf(buf, from, to, HEADERS_END);
+            if (headersEnd < 0) {
+              if (from == 0 && to == buffer.capacity()) {
+                throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+                    "Part headers too large");
+              }
+              return;
+            }
+            buffer.position(headersEnd + HEADERS_END.length);
+          }
+          openFile(new String(buf, from, headersEnd - from, StandardCharsets.ISO_8859_1));
+          state = State.BODY;
+          break;
+        default:
+          // Anything after the closing boundary is ignored.
+          buffer.position(to);
+          return;
+      }
+    }
+  }
+
+  /**
+   * Opens the file of a part, parts without a file name (form fields) are
+   * skipped.
+   */
+  private void openFile(String headers) throws IOException {
+    String fileName = null;
+    for (String line : headers.split("\r\n")) {
+      if (line.regionMatches(true, 0, "Content-Disposition:", 0, 20)) {
+        fileName = fileName(line);
+      }
+    }
+    if (fileName == null) {
+      return;
+    }
+    try {
+      filePath = directory.resolve(fileName);
+    } catch (InvalidPathException e) {
+      throw new HttpParseException(WebServer.ResponseStatusCode.BAD_REQUEST_400,
+          "Bad file name");
+    }
+    Files.createDirectories(directory);
+    partPath = directory.resolve(".upload-" + Long.toHexString(ThreadLocalRandom.current()
+        .nextLong()) + ".part");
+    file = FileChannel.open(partPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    fileNames.add(fileName);
+  }
+
+  /**
+   * Gets the file name out of a Content-Disposition line, without any path a
+   * client may have sent along.
+   */
+  private static String fileName(String line) {
+    int index = line.toLowerCase().indexOf("filename=");
+    if (index < 0) {
+      return null;
+    }
+    String value = line.substring(index + 9).trim();
+    if (value.startsWith("\"")) {
+      int end = value.indexOf('"', 1);
+      value = end < 0 ? value.substring(1) : value.substring(1, end);
+    } else {
+      int end = value.indexOf(';');
+      value = end < 0 ? value : value.substring(0, end).trim();
+    }
+    value = value.substring(Math.max(value.lastIndexOf('/'), value.lastIndexOf('\\')) + 1);
+    return value.isEmpty() || value.equals(".") || value.equals("..") ? null : value;
+  }
+
+  private void write(int from, int to) throws IOException {
+    if (file == null || from == to) {
+      return;
+    }
+    ByteBuffer data = ByteBuffer.wrap(buffer.array(), from, to - from);
+    while (data.hasRemaining()) {
+      file.write(data);
+    }
+  }
+
+  private void closeFile() throws IOException {
+    if (file != null) {
+      file.close();
+      file = null;
+      try {
+        Files.move(partPath, filePath, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        Files.deleteIfExists(partPath);
+        throw e;
+      }
+    }
+  }
+
+  private static int indexOf(byte[] buf, int from, int to, byte[] pattern) {
+    byte first = pattern[0];
+    for (int i = from; i <= to - pattern.length; i++) {
+      if (buf[i] != first) {
+        continue;
+      }
+      int j = 1;
+      while (j < pattern.length && buf[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
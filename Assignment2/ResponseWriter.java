@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the responses of the WebServer handlers. The status lines are encoded
+ * once per status code, the rest of the header block is encoded straight into
+ * a pooled direct buffer, and headers and body leave in one gathering write,
+ * so a small response costs a single system call.
+ *
+ * <p>Without a channel (the selector engine) nothing is written here, the
+ * buffers are handed over to the connection, which releases the header buffer
+ * once they are out.
+ */
+public final class ResponseWriter {
+
+  static final String CRLF = "\r\n";
+
+  private static final int HEADER_BUFFER_SIZE = 4096;
+  private static final int MAX_POOLED_BUFFERS = 1024;
+  private static final BlockingQueue<ByteBuffer> POOL = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+  private static final Map<WebServer.ResponseStatusCode, byte[]> STATUS_LINES = new EnumMap<>(
+      WebServer.ResponseStatusCode.class);
+  private static final byte[] CONTENT_TYPE = ascii("content-type: ");
+  private static final byte[] DEFAULT_TYPE = ascii("text/html");
+  private static final byte[] CONTENT_LENGTH = ascii("content-length: ");
+  private static final byte[] NEW_LINE = ascii(CRLF);
+
+  static {
+    for (WebServer.ResponseStatusCode statusCode : WebServer.ResponseStatusCode.values()) {
+      STATUS_LINES.put(statusCode, ascii("HTTP/1.1 " + statusText(statusCode) + CRLF));
+    }
+  }
+
+  private final WritableByteChannel channel;
+  private WebServer.ResponseStatusCode statusCode = WebServer.ResponseStatusCode.OK_200;
+  private long bodyLength;
+  private ByteBuffer header;
+  private ByteBuffer[] pendingBuffers;
+  private FileRegion pendingBody;
+
+  /**
+   * Constructor for the writer.
+   *
+   * @param channel The socket channel, or null if the buffers are handed over
+   *                instead of written.
+   */
+  public ResponseWriter(WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Encodes the status line and headers of a response into the pooled header
+   * buffer of this writer.
+   *
+   * @param statusCode    The status code that is to be sent.
+   *
+   * @param type          The data type that is to be sent.
+   *
+   * @param contentLength The length of the body that follows.
+   *
+   * @param extraHeaders  More header lines, each ending with CRLF.
+   *
+   * @return The header block, ready to be written.
+   */
+  public ByteBuffer header(WebServer.ResponseStatusCode statusCode, String type,
+      long contentLength, String extraHeaders) {
+    this.statusCode = statusCode;
+    this.bodyLength = statusCode == WebServer.ResponseStatusCode.NOT_MODIFIED_304 ? 0 : contentLength;
+    if (header == null) {
+      header = POOL.poll();
+      if (header == null) {
+        header = ByteBuffer.allocateDirect(HEADER_BUFFER_SIZE);
+      }
+    }
+    header.clear();
+    try {
+      encode(header, statusCode, type, contentLength, extraHeaders);
+    } catch (BufferOverflowException e) {
+      // Too big for a pooled buffer, which only happens with odd headers.
+      return ByteBuffer.wrap(encode(statusCode, type, contentLength, extraHeaders));
+    }
+    header.flip();
+    return header;
+  }
+
+  /**
+   * Notes the status code and body size of a response whose header block was
+   * encoded ahead of time, i.e. by the cache.
+   *
+   * @param statusCode The status code of the response.
+   *
+   * @param bodyLength The size of its body.
+   */
+  public void setResponse(WebServer.ResponseStatusCode statusCode, long bodyLength) {
+    this.statusCode = statusCode;
+    this.bodyLength = bodyLength;
+  }
+
+  /**
+   * @return The status code of the last response, for the metrics and the
+   *         access log.
+   */
+  public WebServer.ResponseStatusCode getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return The body size of the last response, for the access log.
+   */
+  public long getBodyLength() {
+    return bodyLength;
+  }
+
+  /**
+   * Encodes a header block once, for responses that are kept around.
+   *
+   * @return The header block as bytes.
+   */
+  public static byte[] encode(WebServer.ResponseStatusCode statusCode, String type,
+      long contentLength, String extraHeaders) {
+    int size = STATUS_LINES.get(statusCode).length + CONTENT_TYPE.length + DEFAULT_TYPE.length
+        + CONTENT_LENGTH.length + 20 + 3 * NEW_LINE.length + extraHeaders.length()
+        + (type != null ? type.length() : 0);
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    encode(buffer, statusCode, type, contentLength, extraHeaders);
+    byte[] bytes = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes the buffers with one gathering write, or hands them over.
+   *
+   * @param buffers The header block followed by the body, in order.
+   *
+   * @throws IOException In case the socket fails.
+   */
+  public void write(ByteBuffer... buffers) throws IOException {
+    if (channel == null) {
+      pendingBuffers = buffers;
+      return;
+    }
+    try {
+      writeFully(buffers);
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Writes the header block and transfers a file region after it, or hands
+   * both over.
+   *
+   * @param header The header block.
+   *
+   * @param body   The part of the file that is to be sent.
+   *
+   * @throws IOException In case the socket or the file fails.
+   */
+  public void write(ByteBuffer header, FileRegion body) throws IOException {
+    if (channel == null) {
+      pendingBuffers = new ByteBuffer[] {header};
+      pendingBody = body;
+      return;
+    }
+    try (body) {
+      writeFully(header);
+      long count = body.remaining();
+      body.transferFully(channel);
+      Metrics.get().addBytesOut(count);
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Hands the buffers of the last response over to the selector engine.
+   *
+   * @return The buffers that still have to be sent, or null if there are none.
+   */
+  ByteBuffer[] takeBuffers() {
+    ByteBuffer[] buffers = pendingBuffers;
+    pendingBuffers = null;
+    return buffers;
+  }
+
+  /**
+   * Hands the file body of the last response over to the selector engine,
+   * which transfers it once the buffers have been written.
+   *
+   * @return The body that still has to be sent, or null if there is none.
+   */
+  FileRegion takeBody() {
+    FileRegion body = pendingBody;
+    pendingBody = null;
+    return body;
+  }
+
+  /**
+   * Gives the header buffer back to the pool, called once the response is
+   * out.
+   */
+  void release() {
+    if (header != null) {
+      POOL.offer(header);
+      header = null;
+    }
+  }
+
+  /**
+   * @param buffers Buffers of a gathering write.
+   *
+   * @return True if any of them still has bytes left to write.
+   */
+  static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (int i = buffers.length - 1; i >= 0; i--) {
+      if (buffers[i].hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeFully(ByteBuffer... buffers) throws IOException {
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gathering = (GatheringByteChannel) channel;
+      while (hasRemaining(buffers)) {
+        Metrics.get().addBytesOut(gathering.write(buffers));
+      }
+      return;
+    }
+    for (ByteBuffer buffer : buffers) {
+      while (buffer.hasRemaining()) {
+        Metrics.get().addBytesOut(channel.write(buffer));
+      }
+    }
+  }
+
+  private static void encode(ByteBuffer buffer, WebServer.ResponseStatusCode statusCode,
+      String type, long contentLength, String extraHeaders) {
+    buffer.put(STATUS_LINES.get(statusCode));
+    if (statusCode == WebServer.ResponseStatusCode.NOT_MODIFIED_304) {
+      // A 304 has no body, so it describes no content type or length either.
+      putAscii(buffer, extraHeaders);
+      buffer.put(NEW_LINE);
+      return;
+    }
+    buffer.put(CONTENT_TYPE);
+    if (type != null) {
+      putAscii(buffer, type);
+    } else {
+      buffer.put(DEFAULT_TYPE);
+    }
+    buffer.put(NEW_LINE);
+    buffer.put(CONTENT_LENGTH);
+    putDecimal(buffer, contentLength);
+    buffer.put(NEW_LINE);
+    putAscii(buffer, extraHeaders);
+    buffer.put(NEW_LINE);
+  }
+
+  private static String statusText(WebServer.ResponseStatusCode statusCode) {
+    switch (statusCode) {
+      case REDIRECT_302:
+        return "302 Redirect";
+      case OK_200:
+        return "200 OK";
+      case PARTIAL_CONTENT_206:
+        return "206 Partial Content";
+      case NOT_MODIFIED_304:
+        return "304 Not Modified";
+      case BAD_REQUEST_400:
+        return "400 Bad Request";
+      case NOT_FOUND_404:
+        return "404 Not found";
+      case PAYLOAD_TOO_LARGE_413:
+        return "413 Payload Too Large";
+      case RANGE_NOT_SATISFIABLE_416:
+        return "416 Range Not Satisfiable";
+      case SERVICE_UNAVAILABLE_503:
+        return "503 Service Unavailable";
+      default:
+        return "500 Internal server error";
+    }
+  }
+
+  private static void putAscii(ByteBuffer buffer, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      buffer.put((byte) text.charAt(i));
+    }
+  }
+
+  private static void putDecimal(ByteBuffer buffer, long value) {
+    if (value >= 10) {
+      putDecimal(buffer, value / 10);
+    }
+    buffer.put((byte) ('0' + value % 10));
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
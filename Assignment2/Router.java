@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Routing table of the web server. It is built once from the public tree and
+ * a rules file, and maps every URL path straight to the file, content type and
+ * status code to answer with, so a lookup is a hash of the path and nothing
+ * else: no regex and no file system calls. The StaticFileCache watcher keeps
+ * it up to date by handing it every path that changed.
+ *
+ * <p>The rules file has one rule per line, "#" starts a comment:
+ * <pre>
+ * rewrite  /from /to   serve /to under the URL /from
+ * redirect /from /to   answer /from with 302 and the content of /to
+ * suffix   .htm .html  a URL ending in .htm is served as if it ended in .html
+ * </pre>
+ */
+public final class Router {
+
+  /**
+   * What a URL resolves to.
+   */
+  public static final class Route {
+
+    private final Path file;
+    private final String type;
+    private final WebServer.ResponseStatusCode statusCode;
+
+    Route(Path file, String type, WebServer.ResponseStatusCode statusCode) {
+      this.file = file;
+      this.type = type;
+      this.statusCode = statusCode;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    /**
+     * @return The content type, or null if it is unknown.
+     */
+    public String getType() {
+      return type;
+    }
+
+    public WebServer.ResponseStatusCode getStatusCode() {
+      return statusCode;
+    }
+  }
+
+  private static final class Rule {
+
+    private final String from;
+    private final String to;
+    private final WebServer.ResponseStatusCode statusCode;
+
+    Rule(String from, String to, WebServer.ResponseStatusCode statusCode) {
+      this.from = from;
+      this.to = to;
+      this.statusCode = statusCode;
+    }
+  }
+
+  private final Path root;
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+  private final List<Rule> rules = new ArrayList<>();
+  private final List<Rule> suffixes = new ArrayList<>();
+
+  /**
+   * Constructor for the router, scans the whole public tree.
+   *
+   * @param root  The public directory.
+   *
+   * @param rules The rules file, may be null or missing.
+   *
+   * @throws IOException In case the tree or the rules can't be read.
+   */
+  public Router(Path root, Path rules) throws IOException {
+    this.root = root.toAbsolutePath().normalize();
+    if (rules != null && Files.exists(rules)) {
+      loadRules(rules);
+    }
+    update(this.root);
+  }
+
+  /**
+   * Resolves a request target.
+   *
+   * @param target The target from the request line, i.e. "/a/?x=1".
+   *
+   * @return The route, or null if there is no such file (404).
+   */
+  public Route resolve(String target) {
+    int end = target.length();
+    for (int i = 0; i < end; i++) {
+      char c = target.charAt(i);
+      if (c == '?' || c == '#') {
+        end = i;
+      }
+    }
+    String path = end == target.length() ? target : target.substring(0, end);
+
+    Route route = routes.get(path);
+    if (route != null) {
+      return route;
+    }
+    for (Rule suffix : suffixes) {
+      if (path.endsWith(suffix.from)) {
+        route = routes.get(path.substring(0, path.length() - suffix.from.length()) + suffix.to);
+        if (route != null) {
+          return route;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The number of URLs that resolve to something.
+   */
+  public int size() {
+    return routes.size();
+  }
+
+  /**
+   * Brings the table up to date after a file or directory was created,
+   * modified or deleted. Only that part of the tree is scanned again.
+   *
+   * @param changed The path that changed.
+   */
+  public synchronized void update(Path changed) {
+    Path start = changed.toAbsolutePath().normalize();
+    routes.values().removeIf(route -> route.getFile().startsWith(start));
+
+    if (Files.exists(start)) {
+      try (Stream<Path> paths = Files.walk(start)) {
+        paths.forEach(this::add);
+      } catch (NoSuchFileException e) {
+        // Deleted again while walking, the next event cleans up.
+      } catch (IOException | UncheckedIOException e) {
+        e.printStackTrace();
+      }
+      if (start.getFileName() != null && start.getFileName().toString().equals("index.html")) {
+        // The directory URLs point at the index file as well.
+        add(start.getParent());
+      }
+    }
+    applyRules();
+  }
+
+  private void add(Path file) {
+    if (Files.isDirectory(file)) {
+      Path index = file.resolve("index.html");
+      if (Files.isRegularFile(index)) {
+        Route route = fileRoute(index);
+        String url = url(file);
+        routes.put(url, route);
+        if (!url.equals("/")) {
+          routes.put(url + "/", route);
+        }
+      }
+    } else if (Files.isRegularFile(file)) {
+      routes.put(url(file), fileRoute(file));
+    }
+  }
+
+  private Route fileRoute(Path file) {
+    String type;
+    try {
+      type = Files.probeContentType(file);
+    } catch (IOException e) {
+      type = null;
+    }
+    return new Route(file, type, WebServer.ResponseStatusCode.OK_200);
+  }
+
+  /**
+   * Points the rewrite and redirect URLs at whatever their target resolves to
+   * right now.
+   */
+  private void applyRules() {
+    for (Rule rule : rules) {
+      Route target = routes.get(rule.to);
+      if (target == null) {
+        routes.remove(rule.from);
+      } else {
+        routes.put(rule.from, new Route(target.getFile(), target.getType(), rule.statusCode));
+      }
+    }
+  }
+
+  private void loadRules(Path file) throws IOException {
+    int number = 0;
+    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+      number++;
+      int comment = line.indexOf('#');
+      String[] parts = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+      if (parts.length == 1 && parts[0].isEmpty()) {
+        continue;
+      }
+      if (parts.length != 3) {
+        throw new IOException(file + ":" + number + ": expected '<rule> <from> <to>'");
+      }
+      switch (parts[0]) {
+        case "rewrite":
+          rules.add(new Rule(parts[1], parts[2], WebServer.ResponseStatusCode.OK_200));
+          break;
+        case "redirect":
+          rules.add(new Rule(parts[1], parts[2], WebServer.ResponseStatusCode.REDIRECT_302));
+          break;
+        case "suffix":
+          suffixes.add(new Rule(parts[1], parts[2], WebServer.ResponseStatusCode.OK_200));
+          break;
+        default:
+          throw new IOException(file + ":" + number + ": unknown rule '" + parts[0] + "'");
+      }
+    }
+  }
+
+  private String url(Path file) {
+    StringBuilder url = new StringBuilder();
+    for (Path name : root.relativize(file)) {
+      if (!name.toString().isEmpty()) {
+        url.append('/').append(name);
+      }
+    }
+    return url.length() == 0 ? "/" : url.toString();
+  }
+}
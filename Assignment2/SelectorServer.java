@@ -0,0 +1,467 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector based engine for the web server. One acceptor thread hands the
+ * accepted channels over to a few event loops, and each loop multiplexes its
+ * connections through its own Selector. A connection only costs a buffer and a
+ * selection key, so idle or slow clients no longer hold on to a thread.
+ *
+ * <p>With more than one acceptor, each listens on a socket of its own bound
+ * with SO_REUSEPORT and owns its own share of the loops. The kernel then
+ * spreads the connection storm over the acceptors, which share nothing.
+ */
+public class SelectorServer {
+
+  private final int port;
+  private final Router router;
+  private final AdmissionControl admission;
+  private final EventLoop[] loops;
+  private final int acceptors;
+
+  /**
+   * Constructor for the selector engine.
+   *
+   * @param port      The port number to listen on.
+   *
+   * @param router    The routing table of the public directory.
+   *
+   * @param loopCount The number of event loop threads, at least one per
+   *                  acceptor.
+   *
+   * @param acceptors The number of acceptor threads, more than one needs
+   *                  SO_REUSEPORT.
+   *
+   * @param admission Decides which connections are taken on.
+   *
+   * @throws IOException In case a selector could not be opened.
+   */
+  public SelectorServer(int port, Router router, int loopCount, int acceptors,
+      AdmissionControl admission) throws IOException {
+    this.port = port;
+    this.router = router;
+    this.admission = admission;
+    this.acceptors = Math.max(1, acceptors);
+    this.loops = new EventLoop[Math.max(this.acceptors, loopCount)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+  }
+
+  /**
+   * Starts the event loops and the acceptors, the first acceptor runs on the
+   * calling thread.
+   *
+   * @throws IOException In case a server channel fails.
+   */
+  public void start() throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "event-loop-" + i);
+      thread.start();
+    }
+
+    // All channels are bound before any acceptor runs, so a port that is
+    // taken fails the start instead of a single acceptor.
+    ServerSocketChannel[] servers = new ServerSocketChannel[acceptors];
+    for (int i = 0; i < acceptors; i++) {
+      servers[i] = WebServer.openServerChannel(port, acceptors > 1);
+    }
+    System.out.println("Server started, listening on port " + port + " with " + loops.length
+        + " event loop(s)" + (acceptors > 1 ? " and " + acceptors + " acceptors" : ""));
+
+    for (int i = 1; i < acceptors; i++) {
+      int acceptor = i;
+      new Thread(() -> {
+        try {
+          accept(servers[acceptor], acceptor);
+        } catch (IOException e) {
+          e.printStackTrace();
+          System.out.println("Accepting failed, stopping acceptor " + acceptor + ".");
+        }
+      }, "acceptor-" + i).start();
+    }
+    accept(servers[0], 0);
+  }
+
+  /**
+   * Accepts connections on one channel and hands them out round robin to the
+   * loops of this acceptor: every loop whose index modulo the number of
+   * acceptors is the acceptor's own.
+   */
+  private void accept(ServerSocketChannel server, int acceptor) throws IOException {
+    try (server) {
+      int next = acceptor;
+      while (true) {
+        SocketChannel channel;
+        try {
+          channel = server.accept();
+        } catch (IOException e) {
+          WebServer.acceptFailed(server, e);
+          continue;
+        }
+        if (!admission.admit(channel.socket().getInetAddress())) {
+          AdmissionControl.reject(channel);
+          continue;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        loops[next].register(new Connection(channel, loops[next]));
+        next += acceptors;
+        if (next >= loops.length) {
+          next = acceptor;
+        }
+      }
+    }
+  }
+
+  /**
+   * A thread owning one Selector and all the connections registered with it,
+   * and the timer wheel with their deadlines.
+   */
+  private final class EventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+    private final TimerWheel timers = new TimerWheel(WebServer.TIMER_TICK_MILLIS,
+        WebServer.TIMER_SLOTS);
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Queues a connection for registration, called from the acceptor thread.
+     *
+     * @param connection The freshly accepted connection.
+     */
+    void register(Connection connection) {
+      pending.add(connection);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          // Woken up at least once per tick, so the deadlines are checked.
+          selector.select(timers.getTickMillis());
+        } catch (IOException e) {
+          e.printStackTrace();
+          System.out.println("Selector failed, stopping the event loop.");
+          return;
+        }
+        registerPending();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.onReadable();
+            } else if (key.isWritable()) {
+              connection.onWritable();
+            }
+          } catch (IOException | CancelledKeyException e) {
+            connection.close();
+          } catch (RuntimeException e) {
+            // A malformed request must not take the whole loop down with it.
+            e.printStackTrace();
+            connection.close();
+          }
+        }
+        timers.expire();
+      }
+    }
+
+    private void registerPending() {
+      Connection connection;
+      while ((connection = pending.poll()) != null) {
+        SocketChannel channel = connection.channel;
+        if (admission.shouldShed(System.nanoTime() - connection.acceptedAt)) {
+          // The loop is lagging behind, the client is better off retrying.
+          admission.release(connection.address);
+          AdmissionControl.reject(channel);
+          continue;
+        }
+        try {
+          connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+          Metrics.get().connectionOpened();
+          connection.await(Deadline.IDLE);
+        } catch (IOException e) {
+          e.printStackTrace();
+          admission.release(connection.address);
+          closeQuietly(channel);
+        }
+      }
+    }
+  }
+
+  /**
+   * Per connection state machine. The connection is either reading a request
+   * (out is null) or writing a response (out and maybe a file body are set);
+   * once the response is written it goes back to reading, or closes if the
+   * client asked for it. After an h2c preface or upgrade the bytes go to the
+   * Http2Connection instead, and out holds whatever frames it produced. Each
+   * state has a deadline in the timer wheel of the loop, a client that misses
+   * it is closed.
+   */
+  private final class Connection {
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final InetAddress address;
+    private final long acceptedAt = System.nanoTime();
+    private SelectionKey key;
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private final ResponseWriter writer = new ResponseWriter(null);
+    private final WebServer handler;
+    private ByteBuffer in = ByteBuffer.allocate(HttpRequestParser.INITIAL_BUFFER_SIZE);
+    private ByteBuffer[] out;
+    private FileRegion body;
+    private boolean closeAfterWrite;
+    private Http2Connection http2;
+    private final TimerWheel.Timeout timeout = new TimerWheel.Timeout(this::expire);
+    private Deadline deadline;
+
+    Connection(SocketChannel channel, EventLoop loop) {
+      this.channel = channel;
+      this.loop = loop;
+      this.address = channel.socket().getInetAddress();
+      this.handler = new WebServer(router, writer, address);
+    }
+
+    void onReadable() throws IOException {
+      try {
+        in = HttpRequestParser.ensureRoom(in);
+      } catch (HttpParseException e) {
+        respondWithError(e);
+        return;
+      }
+      int n = channel.read(in);
+      if (n == -1) {
+        close();
+        return;
+      }
+      Metrics.get().addBytesIn(n);
+      process();
+    }
+
+    void onWritable() throws IOException {
+      if (http2 != null) {
+        writeHttp2();
+        return;
+      }
+      if (flush()) {
+        if (closeAfterWrite) {
+          close();
+        } else {
+          process();
+        }
+      }
+    }
+
+    /**
+     * Handles every complete request sitting in the input buffer, pipelined
+     * requests included, until the buffer runs dry or the socket is full.
+     */
+    private void process() throws IOException {
+      if (http2 != null) {
+        processHttp2();
+        return;
+      }
+      while (dispatch()) {
+        if (!flush()) {
+          return;
+        }
+        if (closeAfterWrite) {
+          close();
+          return;
+        }
+      }
+      if (http2 != null) {
+        processHttp2();
+      } else if (key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ);
+        await(Deadline.whileReading(parser, in));
+      }
+    }
+
+    private void processHttp2() throws IOException {
+      // Frames of any kind count as activity, an HTTP/2 connection is only
+      // idle once nothing at all arrives.
+      deadline = null;
+      in.flip();
+      http2.feed(in);
+      in.compact();
+      writeHttp2();
+    }
+
+    /**
+     * Writes the frames of the HTTP/2 connection until it has none left or
+     * the socket is full.
+     */
+    private void writeHttp2() throws IOException {
+      while (out != null || (out = http2.takeOutput()) != null) {
+        if (!flush()) {
+          return;
+        }
+      }
+      if (http2.isClosed()) {
+        close();
+      } else if (key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ);
+        await(Deadline.IDLE);
+      }
+    }
+
+    /**
+     * Runs the handlers if a complete request has been buffered.
+     *
+     * @return True if a response is now waiting in out.
+     */
+    private boolean dispatch() throws IOException {
+      try {
+        if (!parser.parse(in)) {
+          if (parser.takeContinue()) {
+            // The interim response goes out like any other, parsing goes on
+            // once it has been written.
+            out = new ByteBuffer[] {ByteBuffer.wrap(HttpRequestParser.CONTINUE_RESPONSE)};
+            return true;
+          }
+          return false;
+        }
+      } catch (HttpParseException e) {
+        prepareError(e);
+        return true;
+      }
+
+      HttpRequest request = parser.getRequest();
+      // A whole request is progress, the deadline that follows starts afresh.
+      deadline = null;
+      if (request.isHttp2Preface()) {
+        http2 = new Http2Connection(handler, writer);
+        in = parser.consume(in);
+        return false;
+      }
+      if (request.isH2cUpgrade()) {
+        http2 = Http2Connection.upgrade(handler, writer, request);
+        in = parser.consume(in);
+        return false;
+      }
+      handler.handleRequest(request);
+      takeResponse();
+      closeAfterWrite = !request.isKeepAlive();
+
+      // Keep whatever follows this request, the next pipelined one.
+      in = parser.consume(in);
+      return true;
+    }
+
+    /**
+     * Answers a malformed request and closes the connection once it is out.
+     */
+    private void respondWithError(HttpParseException error) throws IOException {
+      prepareError(error);
+      if (flush()) {
+        close();
+      }
+    }
+
+    private void prepareError(HttpParseException error) throws IOException {
+      handler.handleParseError(error);
+      takeResponse();
+      closeAfterWrite = true;
+    }
+
+    private void takeResponse() {
+      out = writer.takeBuffers();
+      body = writer.takeBody();
+    }
+
+    /**
+     * Writes as much of the pending response as the socket takes.
+     *
+     * @return True if the whole response has been written.
+     */
+    private boolean flush() throws IOException {
+      Metrics.get().addBytesOut(channel.write(out));
+      if (ResponseWriter.hasRemaining(out)) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        await(Deadline.WRITE);
+        return false;
+      }
+      if (body != null) {
+        Metrics.get().addBytesOut(body.transferTo(channel));
+        if (body.remaining() > 0) {
+          key.interestOps(SelectionKey.OP_WRITE);
+          await(Deadline.WRITE);
+          return false;
+        }
+        body.close();
+        body = null;
+      }
+      out = null;
+      writer.release();
+      return true;
+    }
+
+    /**
+     * Moves the timeout to what the connection waits for now. A deadline that
+     * stays the same keeps running, unless it restarts on progress.
+     */
+    void await(Deadline next) {
+      if (next.reschedules(deadline)) {
+        deadline = next;
+        loop.timers.schedule(timeout, next.getMillis());
+      }
+    }
+
+    private void expire() {
+      Metrics.get().connectionTimedOut(deadline);
+      close();
+    }
+
+    void close() {
+      if (!channel.isOpen()) {
+        return;
+      }
+      loop.timers.cancel(timeout);
+      if (key != null) {
+        key.cancel();
+      }
+      if (body != null) {
+        closeQuietly(body);
+        body = null;
+      }
+      if (http2 != null) {
+        http2.close();
+      }
+      parser.abort();
+      writer.release();
+      closeQuietly(channel);
+      Metrics.get().connectionClosed();
+      admission.release(address);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
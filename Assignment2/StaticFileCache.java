@@ -0,0 +1,447 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Shared LRU cache for the small, hot files of the public directory. An entry
+ * holds the encoded response headers and the body in direct buffers, so a hit
+ * is served without touching the file system at all. The cache is bounded by
+ * the total number of cached bytes, and a WatchService on the served directory
+ * drops entries as soon as their file changes. Compressible files also keep a
+ * gzip variant, so they are compressed once instead of once per request.
+ *
+ * <p>A ReentrantLock guards the map rather than synchronized, so virtual
+ * threads waiting on it don't pin their carrier.
+ */
+public class StaticFileCache {
+
+  private final Path root;
+  private final long maxBytes;
+  private final long maxFileSize;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long totalBytes;
+  private long generation;
+  private WatchService watcher;
+  // Told about every path the watcher sees change, i.e. the Router.
+  private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+
+  /**
+   * One representation of a cached file, plain or gzip compressed. The buffers
+   * are shared so callers only ever get duplicates of them.
+   */
+  public static final class Variant {
+    private final String etag;
+    private final ByteBuffer header;
+    private final ByteBuffer body;
+    private final ByteBuffer notModifiedHeader;
+
+    /**
+     * Constructor for a variant.
+     *
+     * @param etag              The strong entity tag of this representation.
+     *
+     * @param header            The encoded response headers.
+     *
+     * @param body              The content.
+     *
+     * @param notModifiedHeader The encoded headers of the matching 304.
+     */
+    public Variant(String etag, byte[] header, ByteBuffer body, byte[] notModifiedHeader) {
+      this.etag = etag;
+      this.header = direct(header);
+      this.body = body.isDirect() ? body.asReadOnlyBuffer() : direct(body);
+      this.notModifiedHeader = direct(notModifiedHeader);
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public ByteBuffer getHeader() {
+      return header.duplicate();
+    }
+
+    public ByteBuffer getBody() {
+      return body.duplicate();
+    }
+
+    public ByteBuffer getNotModifiedHeader() {
+      return notModifiedHeader.duplicate();
+    }
+
+    long size() {
+      return header.capacity() + body.capacity() + notModifiedHeader.capacity();
+    }
+  }
+
+  /**
+   * A cached file along with the metadata the conditional requests need.
+   */
+  public static final class Entry {
+    private final Path file;
+    private final String type;
+    private final long lastModified;
+    private final Variant identity;
+    private final Variant gzip;
+
+    /**
+     * Constructor for a cache entry.
+     *
+     * @param file         The resolved file, used for invalidation.
+     *
+     * @param type         The content type of the file.
+     *
+     * @param lastModified The modification time of the file in milliseconds.
+     *
+     * @param identity     The file as is.
+     *
+     * @param gzip         The gzip compressed file, or null.
+     */
+    public Entry(Path file, String type, long lastModified, Variant identity, Variant gzip) {
+      this.file = file.toAbsolutePath().normalize();
+      this.type = type;
+      this.lastModified = lastModified;
+      this.identity = identity;
+      this.gzip = gzip;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public Variant getIdentity() {
+      return identity;
+    }
+
+    /**
+     * @return The compressed variant, or null if the file isn't worth it.
+     */
+    public Variant getGzip() {
+      return gzip;
+    }
+
+    long size() {
+      return identity.size() + (gzip == null ? 0 : gzip.size());
+    }
+  }
+
+  /**
+   * Constructor for the cache.
+   *
+   * @param root        The served directory.
+   *
+   * @param maxBytes    The most bytes (headers and bodies) kept in the cache.
+   *
+   * @param maxFileSize Files bigger than this are never cached.
+   */
+  public StaticFileCache(Path root, long maxBytes, long maxFileSize) {
+    this.root = root.toAbsolutePath().normalize();
+    this.maxBytes = maxBytes;
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * Looks up a cached response.
+   *
+   * @param key The cache key, i.e. status code and requested item.
+   *
+   * @return The entry, or null on a miss.
+   */
+  public Entry get(String key) {
+    Entry entry;
+    lock.lock();
+    try {
+      entry = entries.get(key);
+    } finally {
+      lock.unlock();
+    }
+    if (entry == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return entry;
+  }
+
+  /**
+   * @param size The size of a file.
+   *
+   * @return True if a file of that size may be cached.
+   */
+  public boolean accepts(long size) {
+    return size <= maxFileSize;
+  }
+
+  /**
+   * Has to be read before the file is opened and passed on to load, so a
+   * change that happens while the file is read keeps it out of the cache.
+   *
+   * @return The current invalidation generation.
+   */
+  public long generation() {
+    lock.lock();
+    try {
+      return generation;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads a whole file into a direct buffer.
+   *
+   * @param channel The open file, read from the start.
+   *
+   * @return The content, ready to be read.
+   *
+   * @throws IOException In case the file can't be read.
+   */
+  public static ByteBuffer read(FileChannel channel) throws IOException {
+    ByteBuffer body = ByteBuffer.allocateDirect((int) channel.size());
+    while (body.hasRemaining()) {
+      if (channel.read(body, body.position()) < 0) {
+        throw new EOFException("File was truncated while it was being cached");
+      }
+    }
+    body.flip();
+    return body;
+  }
+
+  /**
+   * Caches an entry, unless a file changed since the generation was read.
+   *
+   * @param key        The cache key.
+   *
+   * @param entry      The entry to cache.
+   *
+   * @param generation The generation read before the file was opened.
+   *
+   * @return The entry, which is returned even if it could not be cached.
+   */
+  public Entry put(String key, Entry entry, long generation) {
+    lock.lock();
+    try {
+      if (this.generation == generation && entry.size() <= maxBytes) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+          totalBytes -= previous.size();
+        }
+        totalBytes += entry.size();
+        evict();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return entry;
+  }
+
+  private void evict() {
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      totalBytes -= eldest.next().size();
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Drops every entry whose file is the changed path or lies below it.
+   *
+   * @param changed The file or directory that changed.
+   */
+  public void invalidate(Path changed) {
+    Path normalized = changed.toAbsolutePath().normalize();
+    lock.lock();
+    try {
+      generation++;
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next().getValue();
+        if (entry.file.startsWith(normalized)) {
+          totalBytes -= entry.size();
+          it.remove();
+          invalidations.increment();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops everything, used when the watch service lost track of events.
+   */
+  public void invalidateAll() {
+    lock.lock();
+    try {
+      generation++;
+      invalidations.add(entries.size());
+      entries.clear();
+      totalBytes = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a listener that is handed every path that changed once the cache has
+   * dropped its entries for it, or the root after the watcher lost track.
+   *
+   * @param listener The listener, called on the watcher thread.
+   */
+  public void addListener(Consumer<Path> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Registers the served directory tree with a WatchService and starts a
+   * daemon thread that invalidates entries as files change.
+   *
+   * @throws IOException In case the directory tree can't be watched.
+   */
+  public void startWatching() throws IOException {
+    watcher = root.getFileSystem().newWatchService();
+    registerAll(root);
+    Thread thread = new Thread(this::watch, "static-file-cache-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void registerAll(Path start) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void watch() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          invalidateAll();
+          notifyListeners(root);
+          continue;
+        }
+        Path changed = dir.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+          try {
+            registerAll(changed);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+        invalidate(changed);
+        notifyListeners(changed);
+      }
+      key.reset();
+    }
+  }
+
+  private void notifyListeners(Path changed) {
+    for (Consumer<Path> listener : listeners) {
+      try {
+        listener.accept(changed);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+
+  /**
+   * @return The number of cached entries.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of bytes held by the cached entries.
+   */
+  public long bytes() {
+    lock.lock();
+    try {
+      return totalBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "StaticFileCache[entries=" + size() + ", bytes=" + bytes() + ", hits=" + getHits()
+        + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", invalidations="
+        + getInvalidations() + "]";
+  }
+
+  private static ByteBuffer direct(byte[] bytes) {
+    return direct(ByteBuffer.wrap(bytes));
+  }
+
+  private static ByteBuffer direct(ByteBuffer bytes) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.remaining());
+    buffer.put(bytes.duplicate()).flip();
+    return buffer.asReadOnlyBuffer();
+  }
+}
@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel (Varghese and Lauck) for the connection deadlines. Time
+ * is cut into ticks and every tick maps to one of a fixed number of slots, a
+ * timeout sits in the doubly linked list of the slot its deadline falls in.
+ * Scheduling, rescheduling and cancelling are O(1) no matter how many
+ * connections there are, and a tick only looks at the timeouts of its own
+ * slot. Deadlines are accurate to one tick, which is plenty for timeouts
+ * counted in seconds.
+ *
+ * <p>The selector engine gives every event loop a wheel of its own and
+ * advances it between selects. The thread engines share one wheel that a
+ * background thread advances, which is why it is guarded by a lock.
+ */
+public final class TimerWheel {
+
+  /**
+   * A task with a deadline. It belongs to one wheel and can be scheduled,
+   * rescheduled and cancelled any number of times, so a connection needs only
+   * one for all its deadlines.
+   */
+  public static final class Timeout {
+
+    private final Runnable task;
+    private long deadlineTick;
+    // The slot the timeout is linked into, -1 while it is not scheduled.
+    private int slot = -1;
+    private Timeout previous;
+    private Timeout next;
+
+    /**
+     * Constructor for the timeout.
+     *
+     * @param task What to run once the deadline has passed, on the thread
+     *             that advances the wheel.
+     */
+    public Timeout(Runnable task) {
+      this.task = task;
+    }
+  }
+
+  private final long tickNanos;
+  private final Timeout[] slots;
+  private final int mask;
+  private final long startNanos = System.nanoTime();
+  private final ReentrantLock lock = new ReentrantLock();
+  private long currentTick;
+  private int size;
+  private Thread ticker;
+  private volatile boolean running;
+
+  /**
+   * Constructor for the wheel.
+   *
+   * @param tickMillis The length of a tick.
+   *
+   * @param slotCount  The number of slots, a power of two. One turn of the
+   *                   wheel should cover the usual deadlines, so a slot holds
+   *                   few timeouts that are not due yet.
+   */
+  public TimerWheel(long tickMillis, int slotCount) {
+    if (Integer.bitCount(slotCount) != 1) {
+      throw new IllegalArgumentException("slotCount must be a power of two");
+    }
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.slots = new Timeout[slotCount];
+    this.mask = slotCount - 1;
+  }
+
+  /**
+   * Starts a daemon thread that advances the wheel once per tick, for wheels
+   * no event loop drives.
+   *
+   * @param name The name of the thread.
+   */
+  public void start(String name) {
+    running = true;
+    ticker = new Thread(() -> {
+      while (running) {
+        try {
+          Thread.sleep(TimeUnit.NANOSECONDS.toMillis(tickNanos));
+        } catch (InterruptedException e) {
+          return;
+        }
+        expire();
+      }
+    }, name);
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Stops the thread started by start.
+   */
+  public void stop() {
+    running = false;
+    if (ticker != null) {
+      ticker.interrupt();
+    }
+  }
+
+  /**
+   * Schedules a timeout, moving it if it was scheduled already.
+   *
+   * @param timeout     The timeout.
+   *
+   * @param delayMillis The time from now after which it runs.
+   */
+  public void schedule(Timeout timeout, long delayMillis) {
+    long now = System.nanoTime() - startNanos;
+    long deadlineTick = (now + TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1)
+        / tickNanos;
+    lock.lock();
+    try {
+      unlink(timeout);
+      // A deadline the wheel has passed already is due with the next tick.
+      timeout.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+      link(timeout, (int) timeout.deadlineTick & mask);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Cancels a timeout, nothing happens if it is not scheduled.
+   *
+   * @param timeout The timeout.
+   */
+  public void cancel(Timeout timeout) {
+    lock.lock();
+    try {
+      unlink(timeout);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Advances the wheel to the current time and runs every timeout whose
+   * deadline has passed. The tasks run after the lock is released, so they
+   * may schedule and cancel timeouts themselves.
+   *
+   * @return The number of timeouts that ran.
+   */
+  public int expire() {
+    long targetTick = (System.nanoTime() - startNanos) / tickNanos;
+    List<Timeout> expired = null;
+    lock.lock();
+    try {
+      // After a long pause one turn visits every slot, more turns would only
+      // visit them again.
+      long ticks = Math.min(targetTick - currentTick, slots.length);
+      for (long tick = currentTick + 1; tick <= currentTick + ticks; tick++) {
+        Timeout timeout = slots[(int) tick & mask];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.deadlineTick <= targetTick) {
+            unlink(timeout);
+            if (expired == null) {
+              expired = new ArrayList<>();
+            }
+            expired.add(timeout);
+          }
+          timeout = next;
+        }
+      }
+      currentTick = Math.max(currentTick, targetTick);
+    } finally {
+      lock.unlock();
+    }
+
+    if (expired == null) {
+      return 0;
+    }
+    for (Timeout timeout : expired) {
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        // One failing task must not keep the others from running.
+        e.printStackTrace();
+      }
+    }
+    return expired.size();
+  }
+
+  /**
+   * @return The length of a tick, how often expire should be called.
+   */
+  public long getTickMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+  }
+
+  /**
+   * @return The number of scheduled timeouts.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void link(Timeout timeout, int slot) {
+    Timeout head = slots[slot];
+    timeout.slot = slot;
+    timeout.previous = null;
+    timeout.next = head;
+    if (head != null) {
+      head.previous = timeout;
+    }
+    slots[slot] = timeout;
+    size++;
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.slot < 0) {
+      return;
+    }
+    if (timeout.previous != null) {
+      timeout.previous.next = timeout.next;
+    } else {
+      slots[timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.previous = timeout.previous;
+    }
+    timeout.slot = -1;
+    timeout.previous = null;
+    timeout.next = null;
+    size--;
+  }
+}
@@ -1,19 +1,36 @@
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -26,14 +43,19 @@ import java.util.regex.Pattern;
 public class WebServer implements Runnable {
 
   // Variables needed to run the app, mostly OOP however thread pool is the
-  // exception to the rule.
+  // exception to the rule. The socket is null when the selector engine drives
+  // the handlers, in that case the response writer hands everything over.
   private final Socket socket;
-  private BufferedOutputStream requestContent;
-  private BufferedReader reader;
-  private BufferedWriter writer;
-  private PrintWriter messageHeader;
-  private final String directory;
-  private String request;
+  private final InetAddress remoteAddress;
+  private final long acceptedAt;
+  private ResponseWriter response;
+  private final Router router;
+  private HttpRequest request;
+  // The deadline of the connection in the shared timer wheel, thread engines
+  // only. The timer wheel thread reads it when the timeout fires.
+  private TimerWheel.Timeout timeout;
+  private volatile Deadline deadline;
+  private volatile boolean timedOut;
 
   /**
    * One of the TAs stated that an implementation of a pool is somewhat required.
@@ -41,16 +63,104 @@ public class WebServer implements Runnable {
   private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(5, 10,
       60L, TimeUnit.SECONDS, new SynchronousQueue<>());
 
+  /**
+   * Small hot files are kept in memory by all connections together, null
+   * until main has set it up.
+   */
+  private static StaticFileCache cache;
+  private static final long CACHE_MAX_BYTES = 64L * 1024 * 1024;
+  static final long CACHE_MAX_FILE_SIZE = 1024 * 1024;
+  // Rewrite and redirect rules, read from the working directory.
+  private static final String ROUTES_FILE = "routes.conf";
+  // Where the files of a POST are stored, relative to the working directory.
+  static final Path UPLOAD_DIRECTORY = Paths.get("." + "/public" + "/upload/");
+
+  /**
+   * Every request ends up here instead of on System.out, null until main has
+   * set it up.
+   */
+  private static AccessLog accessLog;
+  private static final String ACCESS_LOG_FILE = "access.log";
+  private static final int ACCESS_LOG_CAPACITY = 8192;
+  private static final long ACCESS_LOG_MAX_FILE_SIZE = 10L * 1024 * 1024;
+  private static final int ACCESS_LOG_KEEP_FILES = 5;
+
+  /**
+   * Connection limits and shedding, null until main has set it up.
+   */
+  private static AdmissionControl admission;
+  private static final int MAX_CONNECTIONS = 10_000;
+  private static final int MAX_CONNECTIONS_PER_ADDRESS = 1000;
+  // A connection takes its socket and, while a file is sent, the file. The
+  // reserve is for the log, the selectors and whatever the JVM opens later.
+  private static final int FDS_PER_CONNECTION = 2;
+  private static final int FD_RESERVE = 32;
+  // How long an acceptor waits after a failed accept, i.e. out of fds.
+  private static final long ACCEPT_BACKOFF_MILLIS = 10;
+  private static final long SHED_TARGET_MILLIS = 5;
+  private static final long SHED_INTERVAL_MILLIS = 100;
+
+  /**
+   * The deadlines of the thread engines, null until main has set it up. The
+   * event loops have wheels of their own.
+   */
+  private static TimerWheel timers;
+  static final long TIMER_TICK_MILLIS = 100;
+  // One turn is 51.2 s, longer than any deadline.
+  static final int TIMER_SLOTS = 512;
+
+  // IMF-fixdate, the date format HTTP uses for Last-Modified.
+  private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+      .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+  /**
+   * Looks up Executors.newVirtualThreadPerTaskExecutor (Java 21) reflectively so
+   * the file still compiles with older JDKs, which get one platform thread per
+   * connection instead. Nothing in the handlers blocks while holding a monitor,
+   * so the virtual threads never pin their carrier thread.
+   * 
+   * @return An executor starting a new (virtual if possible) thread per task.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      System.out.println("Virtual threads need Java 21 or newer, using platform threads instead!");
+      return Executors.newCachedThreadPool();
+    }
+  }
+
   /**
    * Constructor for the web server.
    * 
-   * @param directory The public directory that is used to navigate the files.
+   * @param router The routing table of the public directory.
    * 
-   * @param socket    The socket that establishes a connection.
+   * @param socket The socket that establishes a connection.
    */
-  public WebServer(String directory, Socket socket) {
-    this.directory = directory;
+  public WebServer(Router router, Socket socket) {
+    this.router = router;
     this.socket = socket;
+    this.remoteAddress = socket.getInetAddress();
+    this.acceptedAt = System.nanoTime();
+  }
+
+  /**
+   * Constructor used by the selector engine, the request has already been read
+   * off the channel and the response is collected before it is written back.
+   * 
+   * @param router        The routing table of the public directory.
+   * 
+   * @param response      The writer the response buffers are handed to.
+   * 
+   * @param remoteAddress The client address, for the access log.
+   */
+  WebServer(Router router, ResponseWriter response, InetAddress remoteAddress) {
+    this.router = router;
+    this.socket = null;
+    this.response = response;
+    this.remoteAddress = remoteAddress;
+    this.acceptedAt = System.nanoTime();
   }
 
   /**
@@ -58,8 +168,14 @@ public class WebServer implements Runnable {
    */
   public enum ResponseStatusCode {
     OK_200,
+    PARTIAL_CONTENT_206,
+    NOT_MODIFIED_304,
     INTERNAL_SERVER_ERROR_500,
+    BAD_REQUEST_400,
     NOT_FOUND_404,
+    PAYLOAD_TOO_LARGE_413,
+    RANGE_NOT_SATISFIABLE_416,
+    SERVICE_UNAVAILABLE_503,
     REDIRECT_302
   }
 
@@ -68,41 +184,140 @@ public class WebServer implements Runnable {
    */
   @Override
   public void run() {
+    if (admission != null && admission.shouldShed(System.nanoTime() - acceptedAt)) {
+      // Waited too long for a thread, the client is better off retrying.
+      admission.release(remoteAddress);
+      AdmissionControl.reject(socket.getChannel());
+      return;
+    }
+    Metrics.get().connectionOpened();
     try {
-      messageHeader = new PrintWriter(socket.getOutputStream(), false);
-      requestContent = new BufferedOutputStream(socket.getOutputStream());
-      reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-
-      request = reader.readLine();
-      do {
-        if (request == null) {
-          System.out.println("Request is NULL");
-        } else {
-          System.out.println("The request was: " + request);
-          String[] requestArgs = request.split(" ");
-
-          // This "if" block handle "GET" request
-          if (requestArgs[0].equalsIgnoreCase("GET")) {
-            requestGetHandler(requestArgs[1]);
-
-            // This "if" block handle "POST" request
-          } else if (requestArgs[0].equalsIgnoreCase("POST")) {
-            requestPostHandler();
-          } else {
-            sendResponseCode(ResponseStatusCode.INTERNAL_SERVER_ERROR_500);
+      serve();
+    } finally {
+      Metrics.get().connectionClosed();
+      if (admission != null) {
+        admission.release(remoteAddress);
+      }
+    }
+  }
+
+  /**
+   * Reads and answers the requests of the connection until the client is done
+   * or asks to close it. However that ends, the deadline is cancelled and the
+   * socket closed.
+   */
+  private void serve() {
+    HttpRequestParser parser = null;
+    try {
+      if (timers != null) {
+        timeout = new TimerWheel.Timeout(this::expire);
+      }
+      InputStream input = socket.getInputStream();
+      response = new ResponseWriter(socket.getChannel() != null ? socket.getChannel()
+          : Channels.newChannel(socket.getOutputStream()));
+
+      // One buffer and one parser for the whole connection, whatever is read
+      // past the current request stays in the buffer for the next one.
+      parser = new HttpRequestParser();
+      ByteBuffer buffer = ByteBuffer.allocate(HttpRequestParser.INITIAL_BUFFER_SIZE);
+      boolean keepAlive = true;
+
+      while (keepAlive) {
+        try {
+          while (!parser.parse(buffer)) {
+            if (parser.takeContinue()) {
+              response.write(ByteBuffer.wrap(HttpRequestParser.CONTINUE_RESPONSE));
+            }
+            buffer = HttpRequestParser.ensureRoom(buffer);
+            await(Deadline.whileReading(parser, buffer));
+            int n = input.read(buffer.array(), buffer.position(), buffer.remaining());
+            if (n == -1) {
+              keepAlive = false;
+              break;
+            }
+            Metrics.get().addBytesIn(n);
+            buffer.position(buffer.position() + n);
           }
+        } catch (HttpParseException e) {
+          handleParseError(e);
+          break;
+        }
+        if (!keepAlive) {
+          break;
+        }
+
+        HttpRequest request = parser.getRequest();
+        if (request.isHttp2Preface() || request.isH2cUpgrade()) {
+          serveHttp2(input, parser, buffer);
+          break;
         }
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      } while ((request = reader.readLine()) != null);
+        // Writes are not bounded, a blocking write can't tell a slow reader
+        // from a large response.
+        cancelDeadline();
+        handleRequest(request);
+        keepAlive = parser.getRequest().isKeepAlive();
+        buffer = parser.consume(buffer);
+      }
     } catch (SocketException se) {
-      se.printStackTrace();
-      System.out.println("Accessing socket error occurred.");
-      Thread.currentThread().interrupt();
-      return;
+      // A socket the timer wheel closed is no error, the client missed its
+      // deadline.
+      if (!timedOut) {
+        se.printStackTrace();
+        System.out.println("Accessing socket error occurred.");
+        Thread.currentThread().interrupt();
+      }
     } catch (IOException io) {
-      io.printStackTrace();
-      System.out.println("Error occurred, closing the current thread.");
+      if (!timedOut) {
+        io.printStackTrace();
+        System.out.println("Error occurred, closing the current thread.");
+      }
+    } finally {
+      cancelDeadline();
+      if (parser != null) {
+        // An upload cut off halfway leaves no partial file behind.
+        parser.abort();
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
+  }
+
+  /**
+   * Moves the timeout of the connection to what it waits for now. A deadline
+   * that stays the same keeps running, unless it restarts on progress.
+   * 
+   * @param next The deadline.
+   */
+  private void await(Deadline next) {
+    if (timeout != null && next.reschedules(deadline)) {
+      deadline = next;
+      timers.schedule(timeout, next.getMillis());
+    }
+  }
+
+  private void cancelDeadline() {
+    if (timeout != null) {
+      timers.cancel(timeout);
+      deadline = null;
+    }
+  }
+
+  /**
+   * Runs on the timer wheel thread once the client missed its deadline.
+   * Closing the socket ends the read the connection thread is blocked in.
+   * The wheel runs the timeout after it let go of its lock, so the
+   * connection may have cancelled the deadline meanwhile and is not late.
+   */
+  private void expire() {
+    Deadline missed = deadline;
+    if (missed == null) {
+      return;
+    }
+    timedOut = true;
+    Metrics.get().connectionTimedOut(missed);
     try {
       socket.close();
     } catch (IOException e) {
@@ -110,6 +325,107 @@ public class WebServer implements Runnable {
     }
   }
 
+  /**
+   * Carries on as HTTP/2 after the client sent the preface or asked for an
+   * upgrade, until either side closes the connection.
+   *
+   * @param input  The socket input.
+   *
+   * @param parser The parser holding the preface or upgrade request.
+   *
+   * @param buffer The connection buffer in write mode.
+   *
+   * @throws IOException In case the socket fails.
+   */
+  private void serveHttp2(InputStream input, HttpRequestParser parser, ByteBuffer buffer)
+      throws IOException {
+    // The streams are answered by a handler of their own that hands its
+    // responses over, the frames are written here.
+    ResponseWriter writer = new ResponseWriter(null);
+    WebServer handler = new WebServer(router, writer, remoteAddress);
+    HttpRequest request = parser.getRequest();
+    try (Http2Connection http2 = request.isHttp2Preface() ? new Http2Connection(handler, writer)
+        : Http2Connection.upgrade(handler, writer, request)) {
+      buffer = parser.consume(buffer);
+      while (true) {
+        buffer.flip();
+        http2.feed(buffer);
+        buffer.compact();
+        ByteBuffer[] out;
+        while ((out = http2.takeOutput()) != null) {
+          response.write(out);
+        }
+        if (http2.isClosed()) {
+          return;
+        }
+        buffer = HttpRequestParser.ensureRoom(buffer);
+        // Frames of any kind count as activity.
+        deadline = null;
+        await(Deadline.IDLE);
+        int n = input.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (n == -1) {
+          return;
+        }
+        Metrics.get().addBytesIn(n);
+        buffer.position(buffer.position() + n);
+      }
+    }
+  }
+
+  /**
+   * Dispatches a single request to the matching handler, shared by the thread
+   * pool and the selector engine.
+   * 
+   * @param request The parsed request.
+   * 
+   * @throws IOException
+   */
+  void handleRequest(HttpRequest request) throws IOException {
+    long start = System.nanoTime();
+    this.request = request;
+
+    // This "if" block handle "GET" request
+    if (request.isMethod("GET")) {
+      requestGetHandler(request.getTarget());
+
+      // This "if" block handle "POST" request
+    } else if (request.isMethod("POST")) {
+      requestPostHandler();
+    } else {
+      sendResponseCode(ResponseStatusCode.INTERNAL_SERVER_ERROR_500);
+    }
+    Metrics.get().recordRequest(response.getStatusCode(), System.nanoTime() - start);
+    if (accessLog != null) {
+      accessLog.log(remoteAddress, request, response.getStatusCode(), response.getBodyLength());
+    }
+  }
+
+  /**
+   * Swaps the shared file cache, for the benchmarks which run without main.
+   *
+   * @param fileCache The cache, or null to always read from disk.
+   */
+  static void setCache(StaticFileCache fileCache) {
+    cache = fileCache;
+  }
+
+  /**
+   * Answers a request that could not be parsed, the connection is closed
+   * afterwards.
+   * 
+   * @param error What went wrong.
+   * 
+   * @throws IOException
+   */
+  void handleParseError(HttpParseException error) throws IOException {
+    long start = System.nanoTime();
+    sendResponseCode(error.getStatusCode());
+    Metrics.get().recordRequest(error.getStatusCode(), System.nanoTime() - start);
+    if (accessLog != null) {
+      accessLog.log(remoteAddress, null, error.getStatusCode(), response.getBodyLength());
+    }
+  }
+
   /**
    * Method used to handle GET requests.
    * 
@@ -118,109 +434,416 @@ public class WebServer implements Runnable {
    * @throws IOException
    */
   private void requestGetHandler(String requestPath) throws IOException {
-    try {
-      Pattern htmlPattern = Pattern.compile("^(?=.htm)(?!.html).*");
-      Matcher htmMatcher = htmlPattern.matcher(requestPath);
-
-      if (htmMatcher.matches()) {
-        requestPath = requestPath + "l";
-        System.out.println("htm has been changed to html...");
-      }
+    if (requestPath.equals(Metrics.PATH)) {
+      sendResponseCodeString(ResponseStatusCode.OK_200,
+          Metrics.get().scrape().getBytes(StandardCharsets.UTF_8), Metrics.CONTENT_TYPE);
+      return;
+    }
 
-      if (requestPath.equalsIgnoreCase("/redirect.html")) {
-        sendFile("/a/index.html", ResponseStatusCode.REDIRECT_302);
-      } else {
-        sendFile(requestPath, ResponseStatusCode.OK_200);
-      }
+    // Rewrites (.htm to .html) and the redirect come from the routing table.
+    Router.Route route = router.resolve(requestPath);
+    if (route == null) {
+      sendResponseCode(ResponseStatusCode.NOT_FOUND_404);
+      return;
+    }
+    try {
+      sendFile(route);
     } catch (NoSuchFileException e) {
+      // Deleted after the table was built, the watcher catches up shortly.
       sendResponseCode(ResponseStatusCode.NOT_FOUND_404);
     }
   }
 
+
   /**
-   * Method used to handle POST requests.
+   * Method used to handle POST requests, every file of the multipart body is
+   * stored in the upload folder.
    * 
    * @throws IOException
    */
   private void requestPostHandler() throws IOException {
-    BufferedReader readerForPost = new BufferedReader(new InputStreamReader(socket.getInputStream(),
-        StandardCharsets.ISO_8859_1));
+    // The parser has streamed exactly Content-Length (or the chunked) bytes
+    // into the upload, it ends at the closing boundary within them.
+    MultipartParser multipart = request.getUpload();
+    if (multipart == null) {
+      sendResponseCode(ResponseStatusCode.BAD_REQUEST_400);
+      return;
+    }
+    List<String> fileNames;
+    try {
+      fileNames = multipart.finish();
+    } catch (HttpParseException e) {
+      sendResponseCode(e.getStatusCode());
+      return;
+    }
 
-    String fileName = "";
-    int n = 0;
+    StringBuilder fileUploadedString = new StringBuilder();
+    for (String fileName : fileNames) {
+      if (fileUploadedString.length() > 0) {
+        fileUploadedString.append("<br>");
+      }
+      fileUploadedString.append("Image is found at: <a href=\"/").append(fileName).append("\">")
+          .append(fileName).append("</a>");
+    }
+    sendResponseCodeString(ResponseStatusCode.OK_200, fileUploadedString.toString().getBytes(),
+        "text/html"); // reference to the image that has been uploaded.
+  }
 
-    do {
-      request = readerForPost.readLine();
 
-      if (request.contains("Content-Disposition")) { // Get the image's name
-        fileName = request.split("Content-Disposition: form-data; name=\"file\"; filename=")[1].replace(
-            "\"", "");
+  /**
+   * Method used to transmit a status code.
+   * 
+   * @param statusCode The status code that is to be transmitted.
+   * 
+   * @throws IOException In case an I/O error occurs while writing.
+   */
+  private void sendResponseCode(ResponseStatusCode statusCode) throws IOException {
+    String status = statusCode.toString();
+    byte[] output = status.getBytes();
+    sendResponseCodeString(statusCode, output, "text/plain");
+  }
+
+  /**
+   * Method used to send back the requested file along with status code.
+   * 
+   * @param route The file, its type and the status code that should be followed.
+   * 
+   * @throws IOException
+   */
+  private void sendFile(Router.Route route) throws IOException {
+    final ResponseStatusCode statusCode = route.getStatusCode();
+    final String cacheKey = statusCode + " " + route.getFile();
+    final boolean gzip = GzipEncoder.acceptsGzip(request.getHeader("accept-encoding"));
+    if (cache != null) {
+      StaticFileCache.Entry entry = cache.get(cacheKey);
+      if (entry != null) {
+        sendEntry(entry, statusCode, gzip);
+        return;
       }
+    }
+
+    final long generation = cache != null ? cache.generation() : 0;
+    final Path path = route.getFile();
+    final String type = route.getType();
+    final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+    final long size = fileChannel.size();
+    final long lastModified = Files.getLastModifiedTime(path).toMillis();
+    final String etag = entityTag(size, lastModified, null);
 
-      if (request.contains("Content-Type: image/png")) {
-        readerForPost.readLine(); // Skip the empty line before reaching the real image data
-        new File("." + "/public" + "/upload/" + fileName); // Create the file in the upload folder
-        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream("." + "/public" +
-            "/upload/" + fileName, true), StandardCharsets.ISO_8859_1));
+    if (cache != null && cache.accepts(size)) {
+      StaticFileCache.Entry entry;
+      try (fileChannel) {
+        ByteBuffer content = StaticFileCache.read(fileChannel);
+        StaticFileCache.Variant identity = variant(statusCode, type, content, etag, lastModified,
+            null);
+        StaticFileCache.Variant compressed = null;
 
-        while (n != -1) { // Read the image
-          n = readerForPost.read();
-          writer.write(n);
-          writer.flush();
+        // Text is compressed once here, and only kept if it actually got smaller.
+        if (GzipEncoder.isCompressible(type)) {
+          byte[] gzipBody = GzipEncoder.compress(content);
+          if (gzipBody.length < size) {
+            compressed = variant(statusCode, type, ByteBuffer.wrap(gzipBody),
+                entityTag(size, lastModified, "gzip"), lastModified, "gzip");
+          }
         }
-        writer.close();
-        break;
+        entry = cache.put(cacheKey, new StaticFileCache.Entry(path, type, lastModified, identity,
+            compressed), generation);
       }
-    } while (true);
+      sendEntry(entry, statusCode, gzip);
+      return;
+    }
 
-    String fileUploadedString = "Image is found at: <a href=\"/" + fileName + "\">" + fileName + "</a>"; 
-    sendResponseCodeString(ResponseStatusCode.OK_200, fileUploadedString.getBytes(), "text/html"); // reference to the image that has been uploaded.
+    if (isNotModified(statusCode, etag, lastModified)) {
+      fileChannel.close();
+      response.write(response.header(ResponseStatusCode.NOT_MODIFIED_304, null, 0,
+          notModifiedText(type, etag, lastModified)));
+      return;
+    }
+
+    if (sendRanges(statusCode, type, etag, lastModified, size, null, fileChannel)) {
+      return;
+    }
+
+    response.write(response.header(statusCode, type, size,
+        validatorText(type, etag, lastModified, null)), new FileRegion(fileChannel, 0, size));
   }
 
   /**
-   * Method used to retrieve the files from the public directory.
+   * Sends a cached response, the gzip variant if there is one and the client
+   * accepts it, or just a 304 if the client's copy is still fresh.
+   * 
+   * @param entry      The cached response.
    * 
-   * @param item The name of the file that is to be retrieved.
+   * @param statusCode The status code that should be followed.
    * 
-   * @return The actual file.
+   * @param gzip       True if the client sent "Accept-Encoding: gzip".
+   * 
+   * @throws IOException
    */
-  private File getFile(String item) {
-    File htmlFile = new File(directory, item);
-    if (htmlFile.isDirectory()) {
-      htmlFile = new File(htmlFile, "index.html");
+  private void sendEntry(StaticFileCache.Entry entry, ResponseStatusCode statusCode, boolean gzip)
+      throws IOException {
+    StaticFileCache.Variant variant = entry.getIdentity();
+    if (gzip && entry.getGzip() != null) {
+      variant = entry.getGzip();
+    }
+
+    if (isNotModified(statusCode, variant.getEtag(), entry.getLastModified())) {
+      response.setResponse(ResponseStatusCode.NOT_MODIFIED_304, 0);
+      response.write(variant.getNotModifiedHeader());
+      return;
+    }
+
+    // Ranges always refer to the plain file.
+    StaticFileCache.Variant identity = entry.getIdentity();
+    ByteBuffer content = identity.getBody();
+    if (sendRanges(statusCode, entry.getType(), identity.getEtag(), entry.getLastModified(),
+        content.remaining(), content, null)) {
+      return;
     }
-    return htmlFile;
+    ByteBuffer body = variant.getBody();
+    response.setResponse(statusCode, body.remaining());
+    response.write(variant.getHeader(), body);
   }
 
   /**
-   * Method used to transmit a status code.
+   * Answers a Range request with a 206, or a 416 if no range fits the file. The
+   * ranges are sliced out of the cached body, or for uncached files sent with
+   * positional transfers, the part headers of several ranges in between.
    * 
-   * @param statusCode The status code that is to be transmitted.
+   * @param statusCode   The status code the whole file would get.
+   * 
+   * @param type         The content type of the file.
+   * 
+   * @param etag         The entity tag of the plain file.
+   * 
+   * @param lastModified The modification time of the file.
+   * 
+   * @param size         The size of the file.
+   * 
+   * @param cached       The cached content, or null.
+   * 
+   * @param fileChannel  The open file when there is no cached content, it is
+   *                     closed once a range response has been sent.
+   * 
+   * @return True if a response has been sent, false if the whole file should
+   *         be sent instead.
    * 
-   * @throws IOException In case an I/O error occurs in BufferedOutputStream
-   *                     (BOS).
+   * @throws IOException
    */
-  private void sendResponseCode(ResponseStatusCode statusCode) throws IOException {
-    String status = statusCode.toString();
-    byte[] output = status.getBytes();
-    sendResponseCodeString(statusCode, output, "text/plain");
+  private boolean sendRanges(ResponseStatusCode statusCode, String type, String etag,
+      long lastModified, long size, ByteBuffer cached, FileChannel fileChannel) throws IOException {
+    String rangeHeader = request.getHeader("range");
+    if (statusCode != ResponseStatusCode.OK_200 || rangeHeader == null) {
+      return false;
+    }
+    String ifRange = request.getHeader("if-range");
+    if (ifRange != null && !ifRangeMatches(ifRange, etag, lastModified)) {
+      return false;
+    }
+    List<ByteRange> ranges = ByteRange.parse(rangeHeader, size);
+    if (ranges == null) {
+      return false;
+    }
+
+    String validators = validatorText(type, etag, lastModified, null);
+
+    if (ranges.isEmpty()) {
+      if (fileChannel != null) {
+        fileChannel.close();
+      }
+      response.write(response.header(ResponseStatusCode.RANGE_NOT_SATISFIABLE_416, type, 0,
+          "content-range: bytes */" + size + ResponseWriter.CRLF));
+      return true;
+    }
+
+    if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      String extra = "content-range: " + range.contentRange(size) + ResponseWriter.CRLF
+          + validators;
+      ByteBuffer header = response.header(ResponseStatusCode.PARTIAL_CONTENT_206, type,
+          range.length(), extra);
+      if (cached != null) {
+        response.write(header, slice(cached, range));
+      } else {
+        response.write(header, new FileRegion(fileChannel, range.getStart(), range.length()));
+      }
+      return true;
+    }
+
+    // Several ranges go out as multipart/byteranges, every part with its own
+    // headers. The parts use CRLF like the multipart format asks for.
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    ByteBuffer[] separators = new ByteBuffer[ranges.size() + 1];
+    long[] starts = new long[ranges.size()];
+    long[] ends = new long[ranges.size()];
+    long length = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      String partHeader = "\r\n--" + boundary + "\r\n"
+          + "content-type: " + (type != null ? type : "text/html") + "\r\n"
+          + "content-range: " + range.contentRange(size) + "\r\n\r\n";
+      separators[i] = ByteBuffer.wrap(partHeader.getBytes(StandardCharsets.ISO_8859_1));
+      starts[i] = range.getStart();
+      ends[i] = range.getEnd() + 1;
+      length += partHeader.length() + range.length();
+    }
+    byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    separators[ranges.size()] = ByteBuffer.wrap(end);
+    length += end.length;
+
+    ByteBuffer header = response.header(ResponseStatusCode.PARTIAL_CONTENT_206,
+        "multipart/byteranges; boundary=" + boundary, length, validators);
+    if (cached == null) {
+      // The parts of an uncached file are transferred like a single range,
+      // however big they are.
+      response.write(header, new FileRegion(fileChannel, starts, ends, separators));
+      return true;
+    }
+    List<ByteBuffer> parts = new ArrayList<>();
+    parts.add(header);
+    for (int i = 0; i < ranges.size(); i++) {
+      parts.add(separators[i]);
+      parts.add(slice(cached, ranges.get(i)));
+    }
+    parts.add(separators[ranges.size()]);
+    response.write(parts.toArray(new ByteBuffer[0]));
+    return true;
   }
 
   /**
-   * Method used to send back the requested file along with status code.
+   * Checks If-Range, which holds either an entity tag (compared strongly) or
+   * the Last-Modified date of the version the client already has.
    * 
-   * @param item       The name of the file that is to be sent.
+   * @param ifRange      The header value.
    * 
-   * @param statusCode The status code that should be followed.
+   * @param etag         The entity tag of the plain file.
    * 
-   * @throws IOException
+   * @param lastModified The modification time of the file.
+   * 
+   * @return True if the ranges may be served.
    */
-  private void sendFile(String item, ResponseStatusCode statusCode) throws IOException {
-    final File file = getFile(item);
-    final Path path = file.toPath();
-    final String type = Files.probeContentType(path);
-    final byte[] data = Files.readAllBytes(path);
-    sendResponseCodeString(statusCode, data, type);
+  private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+    String value = ifRange.trim();
+    if (value.startsWith("\"") || value.startsWith("W/")) {
+      return value.equals(etag);
+    }
+    try {
+      long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+          .toEpochMilli();
+      return date / 1000 == lastModified / 1000;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param content The whole cached file.
+   * 
+   * @param range   The range to cut out of it.
+   * 
+   * @return A buffer sharing the bytes of the range.
+   */
+  private static ByteBuffer slice(ByteBuffer content, ByteRange range) {
+    ByteBuffer slice = content.duplicate();
+    slice.position((int) range.getStart());
+    slice.limit((int) range.getEnd() + 1);
+    return slice.slice();
+  }
+
+  /**
+   * Builds a cache variant with all of its headers encoded up front.
+   * 
+   * @param statusCode   The status code that should be followed.
+   * 
+   * @param type         The content type of the file.
+   * 
+   * @param body         The content of this variant.
+   * 
+   * @param etag         The entity tag of this variant.
+   * 
+   * @param lastModified The modification time of the file.
+   * 
+   * @param encoding     The content coding of the body, or null.
+   * 
+   * @return The variant.
+   */
+  private static StaticFileCache.Variant variant(ResponseStatusCode statusCode, String type,
+      ByteBuffer body, String etag, long lastModified, String encoding) {
+    String validators = validatorText(type, etag, lastModified, encoding);
+    byte[] header = ResponseWriter.encode(statusCode, type, body.remaining(), validators);
+    byte[] notModified = ResponseWriter.encode(ResponseStatusCode.NOT_MODIFIED_304, null, 0,
+        notModifiedText(type, etag, lastModified));
+    return new StaticFileCache.Variant(etag, header, body, notModified);
+  }
+
+  /**
+   * Builds a strong entity tag out of the file metadata, the gzip variant gets
+   * its own tag since its bytes differ.
+   * 
+   * @param size         The size of the file.
+   * 
+   * @param lastModified The modification time of the file.
+   * 
+   * @param encoding     The content coding of the body, or null.
+   * 
+   * @return The quoted entity tag.
+   */
+  private static String entityTag(long size, long lastModified, String encoding) {
+    String tag = Long.toHexString(size) + "-" + Long.toHexString(lastModified);
+    if (encoding != null) {
+      tag += "-" + encoding;
+    }
+    return "\"" + tag + "\"";
+  }
+
+  /**
+   * Evaluates If-None-Match, or If-Modified-Since when there is no
+   * If-None-Match, against the current version of a file.
+   * 
+   * @param statusCode   The status code the response would get.
+   * 
+   * @param etag         The entity tag of the representation.
+   * 
+   * @param lastModified The modification time of the file.
+   * 
+   * @return True if a 304 can be sent instead of the file.
+   */
+  private boolean isNotModified(ResponseStatusCode statusCode, String etag, long lastModified) {
+    if (statusCode != ResponseStatusCode.OK_200) {
+      return false;
+    }
+
+    String ifNoneMatch = request.getHeader("if-none-match");
+    if (ifNoneMatch != null) {
+      if (ifNoneMatch.trim().equals("*")) {
+        return true;
+      }
+      // Weak comparison, as If-None-Match asks for.
+      String ours = etag.startsWith("W/") ? etag.substring(2) : etag;
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals(ours)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    String ifModifiedSince = request.getHeader("if-modified-since");
+    if (ifModifiedSince != null) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+            .toInstant().toEpochMilli();
+        // HTTP dates only have whole seconds.
+        return lastModified / 1000 <= since / 1000;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
   }
 
   /**
@@ -232,48 +855,223 @@ public class WebServer implements Runnable {
    * 
    * @param type       The data type that is to be sent.
    * 
-   * @throws IOException In case something fails in BOS.
+   * @throws IOException In case something fails in the socket.
    */
   private void sendResponseCodeString(ResponseStatusCode statusCode, byte[] data, String type) throws IOException {
-    String messageForStatusCode;
-
-    if (statusCode.equals(ResponseStatusCode.REDIRECT_302)) {
-      messageForStatusCode = "302 Redirect";
-    } else if (statusCode.equals(ResponseStatusCode.OK_200)) {
-      messageForStatusCode = "200 OK";
-    } else if (statusCode.equals(ResponseStatusCode.NOT_FOUND_404)) {
-      messageForStatusCode = "404 Not found";
-    } else {
-      messageForStatusCode = "500 Internal server error";
+    response.write(response.header(statusCode, type, data.length, ""), ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Builds the header lines describing a version of a file, ETag and
+   * Last-Modified plus the content coding when the body is compressed. Both
+   * versions of a compressible type get Vary, which one a client gets depends
+   * on its Accept-Encoding, so a shared cache must not hand the plain one to
+   * every client either.
+   * 
+   * @param type         The content type of the file.
+   * 
+   * @param etag         The entity tag of the representation.
+   * 
+   * @param lastModified The modification time of the file.
+   * 
+   * @param encoding     The content coding of the body, or null.
+   * 
+   * @return The header lines.
+   */
+  private static String validatorText(String type, String etag, long lastModified,
+      String encoding) {
+    String newLine = ResponseWriter.CRLF;
+    StringBuilder header = new StringBuilder();
+    header.append("accept-ranges: bytes").append(newLine);
+    header.append("etag: ").append(etag).append(newLine);
+    header.append("last-modified: ").append(HTTP_DATE.format(Instant.ofEpochMilli(lastModified)))
+        .append(newLine);
+    if (encoding != null) {
+      header.append("content-encoding: ").append(encoding).append(newLine);
     }
-    messageHeader.println("HTTP/1.1 " + messageForStatusCode);
-    if (type != null) {
-      messageHeader.println("content-type: " + type);
-    } else {
-      messageHeader.println("content-type" + "text/html");
+    if (GzipEncoder.isCompressible(type)) {
+      header.append("vary: accept-encoding").append(newLine);
     }
-    messageHeader.println("content-length: " + data.length);
-    messageHeader.println();
+    return header.toString();
+  }
+
+  /**
+   * Builds the header lines of a 304 response, which repeats the validators but
+   * has no body.
+   * 
+   * @param type         The content type of the file.
+   * 
+   * @param etag         The entity tag of the representation.
+   * 
+   * @param lastModified The modification time of the file.
+   * 
+   * @return The header lines.
+   */
+  private static String notModifiedText(String type, String etag, long lastModified) {
+    String newLine = ResponseWriter.CRLF;
+    String validators = "etag: " + etag + newLine + "last-modified: "
+        + HTTP_DATE.format(Instant.ofEpochMilli(lastModified)) + newLine;
+    if (GzipEncoder.isCompressible(type)) {
+      validators += "vary: accept-encoding" + newLine;
+    }
+    return validators;
+  }
+
+  /**
+   * Opens a listening channel. With reusePort every acceptor binds a channel
+   * of its own to the same port (SO_REUSEPORT) and the kernel spreads the new
+   * connections over them, instead of all acceptors queuing on one socket.
+   * 
+   * @param port      The port number to listen on.
+   * 
+   * @param reusePort Whether other channels may bind the port as well.
+   * 
+   * @return The bound channel, in blocking mode.
+   * 
+   * @throws IOException In case the port can't be bound.
+   */
+  static ServerSocketChannel openServerChannel(int port, boolean reusePort) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      if (reusePort) {
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      channel.bind(new InetSocketAddress(port), AdmissionControl.ACCEPT_BACKLOG);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * @return True if this platform lets several listening sockets share a
+   *         port, Linux and the BSDs do.
+   */
+  static boolean supportsReusePort() {
+    try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+      return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Accepts connections on one listening socket and hands them to the
+   * workers until the socket fails. The pool and virtual modes run one of
+   * these per acceptor.
+   * 
+   * @param socket  The server socket, backed by a channel so the accepted
+   *                sockets have a SocketChannel that FileChannel.transferTo
+   *                can write to.
+   * 
+   * @param router  The routing table of the public directory.
+   * 
+   * @param workers The executor running the connections.
+   */
+  private static void acceptLoop(ServerSocket socket, Router router, ExecutorService workers) {
+    try (socket) {
+      while (true) {
+        Socket client;
+        try {
+          client = acceptAdmitted(socket);
+        } catch (IOException e) {
+          acceptFailed(socket.getChannel(), e);
+          continue;
+        }
+        try {
+          workers.execute(new WebServer(router, client));
+        } catch (RejectedExecutionException e) {
+          // All ten threads are busy, turn the client away instead of
+          // letting the exception end the accept loop.
+          admission.release(client.getInetAddress());
+          AdmissionControl.reject(client.getChannel());
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.out.println("Accepting failed, stopping " + Thread.currentThread().getName() + ".");
+    }
+  }
 
-    messageHeader.flush();
-    requestContent.write(data);
-    requestContent.flush();
+  /**
+   * Waits a little after accept failed, so an acceptor that ran out of file
+   * descriptors keeps going once connections close instead of dying. Only a
+   * closed listening channel ends the accept loop.
+   * 
+   * @param server The listening channel.
+   * 
+   * @param error  Why accept failed.
+   * 
+   * @throws IOException The error, if the channel is closed.
+   */
+  static void acceptFailed(ServerSocketChannel server, IOException error) throws IOException {
+    if (!server.isOpen()) {
+      throw error;
+    }
+    System.out.println("Accepting failed, retrying: " + error.getMessage());
+    try {
+      Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw error;
+    }
+  }
+
+  /**
+   * The connection limit, lowered so that the connections at the limit still
+   * leave file descriptors over. Clients beyond it get a 503 instead of the
+   * acceptor running out of descriptors.
+   * 
+   * @return MAX_CONNECTIONS, or less if the process may not open enough files.
+   */
+  private static int connectionLimit() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (!(os instanceof com.sun.management.UnixOperatingSystemMXBean)) {
+      return MAX_CONNECTIONS;
+    }
+    com.sun.management.UnixOperatingSystemMXBean unix =
+        (com.sun.management.UnixOperatingSystemMXBean) os;
+    long free = unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount() - FD_RESERVE;
+    return (int) Math.max(1, Math.min(MAX_CONNECTIONS, free / FDS_PER_CONNECTION));
+  }
+
+  /**
+   * Accepts the next connection the admission control lets in, the others
+   * get their 503 right away.
+   * 
+   * @param socket The server socket.
+   * 
+   * @return The admitted connection.
+   * 
+   * @throws IOException In case the server socket fails.
+   */
+  private static Socket acceptAdmitted(ServerSocket socket) throws IOException {
+    while (true) {
+      Socket client = socket.accept();
+      if (admission.admit(client.getInetAddress())) {
+        return client;
+      }
+      AdmissionControl.reject(client.getChannel());
+    }
   }
 
   /**
    * The main method of the program.
    * 
-   * @param args The port number (integer) and "public" directory.
+   * @param args The port number (integer) and "public" directory, optionally
+   *             followed by the mode and the number of acceptors.
    * 
    * @throws Exception
    */
   public static void main(String[] args) throws Exception {
 
-    // Checks for the argument length and if it doesn't equal to two, exit the
+    // Checks for the argument length and if it isn't two to four, exit the
     // program.
-    if (args.length != 2) {
+    if (args.length < 2 || args.length > 4) {
       System.out.println("Please retry the following format to initialize the server: ");
-      System.out.println("'java' 'WebServerV3' 'portNumber' 'directory' ");
+      System.out.println("'java' 'WebServer' 'portNumber' 'directory' "
+          + "['nio' | 'pool' | 'virtual' ['acceptors']]");
       System.exit(1);
     } else {
       System.out.println("Establishing a connection...");
@@ -310,14 +1108,79 @@ public class WebServer implements Runnable {
     // variable.
     int justInCase = Integer.parseInt(args[0]);
 
-    try (ServerSocket socket = new ServerSocket(justInCase)) {
-      System.out.println("Server started, listening on port " + justInCase);
-      while (true) {
-        WebServer server = new WebServer(args[1], socket.accept());
-        Thread thread = new Thread(server);
-        executor.execute(thread);
-        System.out.println("Connection has been established >>>>>>>");
+    Router router = new Router(Paths.get(args[1]), Paths.get(ROUTES_FILE));
+    System.out.println("Routing table built with " + router.size() + " URLs");
+
+    cache = new StaticFileCache(Paths.get(args[1]), CACHE_MAX_BYTES, CACHE_MAX_FILE_SIZE);
+    cache.addListener(router::update);
+    cache.startWatching();
+
+    accessLog = new AccessLog(Paths.get(ACCESS_LOG_FILE), ACCESS_LOG_CAPACITY,
+        ACCESS_LOG_MAX_FILE_SIZE, ACCESS_LOG_KEEP_FILES);
+    accessLog.start();
+    System.out.println("Requests are logged to " + ACCESS_LOG_FILE);
+
+    int maxConnections = connectionLimit();
+    if (maxConnections < MAX_CONNECTIONS) {
+      System.out.println("The file descriptor limit allows " + maxConnections + " connections.");
+    }
+    admission = new AdmissionControl(maxConnections,
+        Math.min(maxConnections, MAX_CONNECTIONS_PER_ADDRESS),
+        SHED_TARGET_MILLIS, SHED_INTERVAL_MILLIS);
+
+    Metrics.get().monitor(cache);
+    Metrics.get().monitor(accessLog);
+    Metrics.get().monitor(admission);
+    Metrics.get().registerMBean();
+
+    // The selector engine is the default, the thread pool is kept around as the
+    // "pool" mode and "virtual" runs the same Runnable on a virtual thread each.
+    String mode = args.length >= 3 ? args[2] : "nio";
+
+    // One acceptor is the default, more of them need SO_REUSEPORT so each can
+    // listen on a socket of its own.
+    int acceptors = 1;
+    if (args.length == 4) {
+      try {
+        acceptors = Math.max(1, Integer.parseInt(args[3]));
+      } catch (NumberFormatException e) {
+        System.out.println("Acceptors is not a number, one acceptor has been set!");
+      }
+    }
+    if (acceptors > 1 && !supportsReusePort()) {
+      System.out.println("SO_REUSEPORT is not supported here, one acceptor has been set!");
+      acceptors = 1;
+    }
+
+    if (mode.equalsIgnoreCase("virtual") || mode.equalsIgnoreCase("pool")) {
+      ExecutorService workers = mode.equalsIgnoreCase("virtual") ? newVirtualThreadExecutor()
+          : executor;
+      // Only a pool has threads and a queue worth reporting, virtual threads
+      // and the selector loops are not counted by the executor gauges.
+      if (workers instanceof ThreadPoolExecutor) {
+        Metrics.get().monitor((ThreadPoolExecutor) workers);
+      }
+      timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_SLOTS);
+      timers.start("timer-wheel");
+      ServerSocket[] sockets = new ServerSocket[acceptors];
+      for (int i = 0; i < acceptors; i++) {
+        sockets[i] = openServerChannel(justInCase, acceptors > 1).socket();
+      }
+      System.out.println("Server started, listening on port " + justInCase
+          + (acceptors > 1 ? " with " + acceptors + " acceptors" : ""));
+      for (int i = 1; i < acceptors; i++) {
+        ServerSocket socket = sockets[i];
+        new Thread(() -> acceptLoop(socket, router, workers), "acceptor-" + i).start();
+      }
+      acceptLoop(sockets[0], router, workers);
+    } else {
+      if (!mode.equalsIgnoreCase("nio")) {
+        System.out.println("Unknown mode " + mode + ", the selector engine has been set!");
       }
+      // Every acceptor feeds a group of loops of its own, so there are at
+      // least as many loops as acceptors.
+      int loops = Math.max(Runtime.getRuntime().availableProcessors(), acceptors);
+      new SelectorServer(justInCase, router, loops, acceptors, admission).start();
     }
   }
 
@@ -0,0 +1,30 @@
+#!/bin/bash
+
+# Runs the same load against the thread pool and the virtual thread mode.
+# Every client is a shell loop fetching a page with curl over and over, so
+# CLIENTS is also the number of concurrent connections.
+#
+# usage: ./compare_modes.sh [clients] [requests per client] [port]
+# (run it from the Assignment2 folder after "javac WebServer.java")
+
+CLIENTS=${1:-50}
+REQUESTS=${2:-20}
+PORT=${3:-8090}
+
+for MODE in pool virtual; do
+  java WebServer "$PORT" public "$MODE" > /dev/null 2>&1 &
+  SERVER=$!
+  sleep 1
+
+  START=$(date +%s%N)
+  FAILED=$(seq "$CLIENTS" | xargs -P "$CLIENTS" -I{} sh -c \
+    "for i in \$(seq $REQUESTS); do curl -s -o /dev/null -m 10 -w '%{http_code}\n' \
+    http://127.0.0.1:$PORT/index.html; done" | grep -vc '^200$')
+  END=$(date +%s%N)
+
+  echo "$MODE: $CLIENTS clients x $REQUESTS requests in $(( (END - START) / 1000000 )) ms, $FAILED failed"
+
+  kill "$SERVER"
+  wait "$SERVER" 2> /dev/null
+  sleep 1
+done
@@ -0,0 +1,344 @@
+package webserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH microbenchmarks for the hot paths of the web server: request parsing,
+ * route lookup, header encoding, sending small and large files, multipart
+ * uploads and accepting connections with one or more SO_REUSEPORT acceptors.
+ * Every benchmark is warmed up first, so the JIT has compiled it, then
+ * measured over several fixed-time rounds in a JVM of its own. Compare the
+ * results with the numbers of the last release before shipping a new one.
+ *
+ * <p>The benchmarks work on their own temporary public tree, so the numbers
+ * do not depend on what is in public/. Responses go over a loopback
+ * connection that a thread reads and throws away, writing to /dev/null would
+ * let the kernel skip the copies sendfile saves in the first place.
+ *
+ * <p>usage: gradle jmh [-Pjmh=filter], i.e. "gradle jmh -Pjmh=sendfile"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class Benchmarks {
+
+  private static final int SMALL_FILE_SIZE = 2 * 1024;
+  private static final int LARGE_FILE_SIZE = 8 * 1024 * 1024;
+  private static final int UPLOAD_SIZE = 1024 * 1024;
+  private static final int READ_SIZE = 64 * 1024;
+  private static final String BOUNDARY = "----benchmarkboundary7MA4YWxkTrZu0gW";
+  // Connecting threads, the same number for every acceptor count. Each waits
+  // until its connection was accepted, so the backlog never overflows.
+  private static final int ACCEPT_CLIENTS = 16;
+
+  private static final byte[] GET = ("GET /a/page17.html?lang=en HTTP/1.1\r\n"
+      + "Host: localhost:8080\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+      + "Accept-Language: en-US,en;q=0.5\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Connection: keep-alive\r\n"
+      + "Upgrade-Insecure-Requests: 1\r\n"
+      + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+  private static final String[] TARGETS = {"/index.html", "/a/page17.html?lang=en",
+      "/a/page42.htm", "/nosuch.html"};
+
+  /**
+   * The temporary public tree, a handler writing to a drained loopback
+   * connection and the requests the benchmarks send it.
+   */
+  @State(Scope.Thread)
+  public static class Server {
+
+    Path root;
+    Router router;
+    SocketChannel client;
+    ResponseWriter writer;
+    WebServer handler;
+    StaticFileCache cache;
+    HttpRequestParser parser;
+    ByteBuffer in;
+    int next;
+    HttpRequest notFound;
+    HttpRequest small;
+    HttpRequest large;
+    Path uploads;
+    ByteBuffer body;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      root = Files.createTempDirectory("webserver-bench");
+      Files.write(root.resolve("index.html"), filler(SMALL_FILE_SIZE));
+      Files.createDirectories(root.resolve("a/b"));
+      Files.write(root.resolve("a/b/large.bin"), filler(LARGE_FILE_SIZE));
+      for (int i = 0; i < 200; i++) {
+        Files.write(root.resolve("a/page" + i + ".html"), filler(512));
+      }
+      Path rules = root.resolve("routes.conf");
+      Files.write(rules, "suffix .htm .html\n".getBytes(StandardCharsets.ISO_8859_1));
+
+      router = new Router(root, rules);
+      client = connectDrain();
+      writer = new ResponseWriter(client);
+      handler = new WebServer(router, writer, InetAddress.getLoopbackAddress());
+      cache = new StaticFileCache(root, 64L * 1024 * 1024, WebServer.CACHE_MAX_FILE_SIZE);
+
+      parser = new HttpRequestParser();
+      in = ByteBuffer.allocate(HttpRequestParser.INITIAL_BUFFER_SIZE);
+      notFound = request("GET /nosuch.html HTTP/1.1\r\nHost: x\r\n\r\n");
+      small = request("GET /index.html HTTP/1.1\r\nHost: x\r\n\r\n");
+      large = request("GET /a/b/large.bin HTTP/1.1\r\nHost: x\r\n\r\n");
+      uploads = Files.createDirectories(root.resolve("upload"));
+      body = ByteBuffer.wrap(multipartBody());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      WebServer.setCache(null);
+      client.close();
+      try (Stream<Path> files = Files.walk(root)) {
+        files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+
+  @Benchmark
+  public int parseGet(Server server) throws IOException {
+    server.in.put(GET);
+    if (!server.parser.parse(server.in)) {
+      throw new IllegalStateException("request not complete");
+    }
+    int length = server.parser.getRequest().getTarget().length();
+    server.in = server.parser.consume(server.in);
+    return length;
+  }
+
+  @Benchmark
+  public Router.Route routeResolve(Server server) {
+    return server.router.resolve(TARGETS[server.next++ & 3]);
+  }
+
+  @Benchmark
+  public int headerEncode(Server server) {
+    ByteBuffer header = server.writer.header(WebServer.ResponseStatusCode.OK_200, "text/html",
+        SMALL_FILE_SIZE, "");
+    int length = header.remaining();
+    server.writer.release();
+    return length;
+  }
+
+  @Benchmark
+  public void response404(Server server) throws IOException {
+    server.handler.handleRequest(server.notFound);
+  }
+
+  @Benchmark
+  public void sendfileSmallUncached(Server server) throws IOException {
+    WebServer.setCache(null);
+    server.handler.handleRequest(server.small);
+  }
+
+  @Benchmark
+  public void sendfileSmallCached(Server server) throws IOException {
+    WebServer.setCache(server.cache);
+    server.handler.handleRequest(server.small);
+  }
+
+  @Benchmark
+  public void sendfileLarge(Server server) throws IOException {
+    WebServer.setCache(server.cache);
+    server.handler.handleRequest(server.large);
+  }
+
+  @Benchmark
+  public List<String> multipartUpload(Server server) throws IOException {
+    MultipartParser multipart = new MultipartParser(BOUNDARY, server.uploads);
+    ByteBuffer body = server.body;
+    // Fed in socket sized pieces, the way a connection sees the body.
+    for (int from = 0; from < body.capacity(); from += READ_SIZE) {
+      ByteBuffer piece = body.duplicate();
+      piece.position(from).limit(Math.min(from + READ_SIZE, body.capacity()));
+      multipart.feed(piece);
+    }
+    return multipart.finish();
+  }
+
+  /**
+   * Acceptor threads, each on a listening socket of its own bound with
+   * SO_REUSEPORT, that close what they accept with a reset.
+   */
+  @State(Scope.Benchmark)
+  public static class Acceptors {
+
+    @Param({"1", "2", "4"})
+    int acceptors;
+
+    InetSocketAddress address;
+    private ServerSocketChannel[] servers;
+    private final List<Thread> threads = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      if (!WebServer.supportsReusePort()) {
+        throw new IllegalStateException("SO_REUSEPORT is not supported here");
+      }
+      servers = new ServerSocketChannel[acceptors];
+      servers[0] = WebServer.openServerChannel(0, true);
+      int port = ((InetSocketAddress) servers[0].getLocalAddress()).getPort();
+      for (int i = 1; i < acceptors; i++) {
+        servers[i] = WebServer.openServerChannel(port, true);
+      }
+      for (ServerSocketChannel server : servers) {
+        Thread thread = new Thread(() -> {
+          try {
+            while (true) {
+              try (SocketChannel channel = server.accept()) {
+                // Reset instead of a FIN, so no side piles up TIME_WAIT sockets.
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+              }
+            }
+          } catch (IOException e) {
+            // The channel was closed, the benchmark is over.
+          }
+        }, "benchmark-acceptor");
+        threads.add(thread);
+        thread.start();
+      }
+      address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+      for (ServerSocketChannel server : servers) {
+        server.close();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+  }
+
+  /**
+   * Connects and waits until the acceptor has taken the connection. The
+   * score is the number of accepted connections per second, across all
+   * acceptors.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @Threads(ACCEPT_CLIENTS)
+  public void acceptReuseport(Acceptors acceptors, Blackhole blackhole) {
+    ByteBuffer buffer = ByteBuffer.allocate(1);
+    try (SocketChannel channel = SocketChannel.open(acceptors.address)) {
+      blackhole.consume(channel.read(buffer));
+    } catch (IOException e) {
+      // Reset by the acceptor.
+    }
+  }
+
+  /**
+   * Opens a loopback connection whose other end is read by a daemon thread
+   * until it is closed.
+   *
+   * @return The end the responses are written to.
+   */
+  private static SocketChannel connectDrain() throws IOException {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      SocketChannel client = SocketChannel.open(server.getLocalAddress());
+      SocketChannel peer = server.accept();
+      Thread drain = new Thread(() -> {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (peer) {
+          while (peer.read(buffer) != -1) {
+            buffer.clear();
+          }
+        } catch (IOException e) {
+          // The benchmarks are over.
+        }
+      }, "benchmark-drain");
+      drain.setDaemon(true);
+      drain.start();
+      return client;
+    }
+  }
+
+  private static HttpRequest request(String text) throws IOException {
+    HttpRequestParser parser = new HttpRequestParser();
+    ByteBuffer in = ByteBuffer.allocate(HttpRequestParser.INITIAL_BUFFER_SIZE);
+    in.put(text.getBytes(StandardCharsets.ISO_8859_1));
+    if (!parser.parse(in)) {
+      throw new IllegalStateException("request not complete: " + text);
+    }
+    return parser.getRequest();
+  }
+
+  /**
+   * @return A form with a text field and two files, UPLOAD_SIZE bytes of
+   *         file content in total.
+   */
+  private static byte[] multipartBody() {
+    StringBuilder head = new StringBuilder();
+    head.append("--").append(BOUNDARY).append("\r\n")
+        .append("Content-Disposition: form-data; name=\"comment\"\r\n\r\n")
+        .append("two pictures\r\n");
+    ByteBuffer body = ByteBuffer.allocate(UPLOAD_SIZE + 1024);
+    body.put(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    for (int i = 0; i < 2; i++) {
+      body.put(("--" + BOUNDARY + "\r\n"
+          + "Content-Disposition: form-data; name=\"file\"; filename=\"bench" + i + ".png\"\r\n"
+          + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      body.put(filler(UPLOAD_SIZE / 2));
+      body.put("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+    body.put(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    byte[] bytes = new byte[body.position()];
+    body.flip();
+    body.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * @return Bytes that look like binary file content, but never contain CR,
+   *         so no boundary can show up by accident.
+   */
+  private static byte[] filler(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      byte b = (byte) (i * 31 + (i >>> 8));
+      bytes[i] = b == '\r' ? 0 : b;
+    }
+    return bytes;
+  }
+}
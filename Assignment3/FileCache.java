@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Files being read, each loaded once into an off-heap buffer that every
+ * session reading it shares. When hundreds of clients boot from the same
+ * kernel at once, they are all served from one copy in memory, instead of
+ * each session reading the file block by block on its own.
+ *
+ * <p>The files are copied, not mapped. A mapped file that is rewritten in
+ * place while it is being served, like cp over a kernel image, makes every
+ * read past its new end fail with an InternalError (SIGBUS). A copy keeps
+ * serving what the transfer started with.
+ *
+ * <p>Copies are loaded on a thread of their own, a file of hundreds of
+ * megabytes would hold up the event loop that asked for it, and every other
+ * loop waiting for the lock meanwhile. Until the copy is ready acquire
+ * returns null and sessions read the file themselves, through their channel.
+ *
+ * <p>A copy is kept as long as the file has the same size and modification
+ * time, and sessions hold a reference to it while they read. Copies nobody
+ * reads are dropped, least recently used first, when a new one would not fit
+ * under the capacity. If it still does not fit, the file is not copied at
+ * all. Java frees a dropped buffer once it is garbage collected, not right
+ * away.
+ */
+final class FileCache {
+
+  // What the copies may take together, in bytes.
+  static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+  private final long capacity;
+  // The bytes of all copies sessions may still read, replaced ones included.
+  private long used;
+  // In access order, the least recently used copy comes first.
+  private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Loads one copy at a time, the disk is not any faster with more.
+  private final ExecutorService loader = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "tftp-cache-loader");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Constructor for the cache.
+   *
+   * @param capacity The number of bytes the copies may take together.
+   */
+  FileCache(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Gets the copy of a file and holds on to it until it is released. If there
+   * is none yet, loading one starts in the background.
+   *
+   * @param path The file.
+   *
+   * @param file The file, opened for reading.
+   *
+   * @return The copy, or null if it is not loaded yet or the file does not
+   *         fit in the cache.
+   *
+   * @throws IOException In case the file could not be read.
+   */
+  synchronized Entry acquire(Path path, FileChannel file) throws IOException {
+    FileTime modified = Files.getLastModifiedTime(path);
+    long size = file.size();
+    Entry entry = entries.get(path);
+    if (entry != null && (entry.size != size || !entry.modified.equals(modified))) {
+      // The file changed, sessions still reading the old copy keep it.
+      drop(path, entry);
+      entry = null;
+    }
+    if (entry == null) {
+      if (size > Integer.MAX_VALUE || !makeRoom(size)) {
+        return null;
+      }
+      Entry loading = new Entry(modified, size);
+      entries.put(path, loading);
+      used += size;
+      loader.execute(() -> load(path, loading));
+      return null;
+    }
+    if (entry.contents == null) {
+      return null;
+    }
+    entry.references++;
+    return entry;
+  }
+
+  /**
+   * Lets go of a copy, it may be dropped once no session holds it.
+   */
+  synchronized void release(Entry entry) {
+    entry.references--;
+    if (entry.replaced && entry.references == 0) {
+      used -= entry.size;
+    }
+  }
+
+  /**
+   * Loads a copy, on the loader thread. It only takes the place meant for it
+   * if the file is still the one acquire saw.
+   */
+  private void load(Path path, Entry entry) {
+    ByteBuffer contents = null;
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      contents = read(file, (int) entry.size);
+      if (contents != null && (file.size() != entry.size
+          || !Files.getLastModifiedTime(path).equals(entry.modified))) {
+        contents = null;
+      }
+    } catch (IOException e) {
+      System.err.println("Could not cache " + path + ": " + e.getMessage());
+    }
+    synchronized (this) {
+      if (entry.replaced) {
+        // The file changed while it was loaded, a newer copy is on its way.
+        return;
+      }
+      if (contents == null) {
+        // The next read tries again.
+        drop(path, entry);
+        return;
+      }
+      entry.contents = contents;
+    }
+  }
+
+  /**
+   * Reads a whole file into a new off-heap buffer.
+   *
+   * @return The buffer, or null if there is not enough direct memory or the
+   *         file got shorter meanwhile.
+   */
+  private static ByteBuffer read(FileChannel file, int size) throws IOException {
+    ByteBuffer contents;
+    try {
+      contents = ByteBuffer.allocateDirect(size);
+    } catch (OutOfMemoryError e) {
+      // -XX:MaxDirectMemorySize is lower than the capacity.
+      return null;
+    }
+    while (contents.hasRemaining()) {
+      if (file.read(contents, contents.position()) == -1) {
+        return null;
+      }
+    }
+    return contents.flip();
+  }
+
+  /**
+   * Takes a copy out of the cache, sessions still reading it keep it.
+   */
+  private void drop(Path path, Entry entry) {
+    entries.remove(path);
+    entry.replaced = true;
+    if (entry.references == 0) {
+      used -= entry.size;
+    }
+  }
+
+  /**
+   * Drops unused copies, least recently used first, until there is room.
+   *
+   * @return False if there is not enough room, nothing is dropped then.
+   */
+  private boolean makeRoom(long size) {
+    long free = capacity - used;
+    for (Entry entry : entries.values()) {
+      if (free >= size) {
+        break;
+      }
+      if (entry.droppable()) {
+        free += entry.size;
+      }
+    }
+    if (free < size) {
+      return false;
+    }
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (capacity - used < size) {
+      Entry entry = iterator.next();
+      if (entry.droppable()) {
+        iterator.remove();
+        used -= entry.size;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A copy of a file and the number of sessions reading it.
+   */
+  static final class Entry {
+
+    private final FileTime modified;
+    private final long size;
+    // Null while the copy is being loaded.
+    private ByteBuffer contents;
+    private int references;
+    // The file changed and a newer copy took the place of this one, or the
+    // copy could not be loaded.
+    private boolean replaced;
+
+    private Entry(FileTime modified, long size) {
+      this.modified = modified;
+      this.size = size;
+    }
+
+    // A copy being loaded keeps its place, its loader fills it in.
+    private boolean droppable() {
+      return references == 0 && contents != null;
+    }
+
+    long size() {
+      return size;
+    }
+
+    /**
+     * @return A view of the copy with a position and limit of its own, for
+     *         one session to read from.
+     */
+    ByteBuffer view() {
+      return contents.duplicate();
+    }
+  }
+}
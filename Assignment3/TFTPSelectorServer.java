@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event driven engine for the TFTP server. Instead of a thread and a socket
+ * per transfer, a few event loops each own one non-blocking DatagramChannel on
+ * the server port and drive all their TransferSessions from there: hand
+ * each packet to the session of its client, send the answer and retransmit
+ * when none comes. Packets are told apart by the client address, so a
+ * transfer costs a map entry and a session and one process handles
+ * thousands of them.
+ *
+ * <p>With more than one loop every channel is bound with SO_REUSEPORT. The
+ * kernel hashes each client address to one of them, so all packets of a
+ * transfer end up at the loop that owns it. The loops share no transfer
+ * state, only the FileCache. It loads its copies on a thread of its own,
+ * the loops only take its lock to look one up.
+ */
+public class TFTPSelectorServer {
+
+  // Big enough for any datagram, so oversized ones are seen as such.
+  private static final int MAX_DATAGRAM_SIZE = 65536;
+  // How often the loops look for transfers whose answer is overdue.
+  private static final long TICK_MILLIS = 20;
+  // Datagrams handled before the timers get a look again.
+  private static final int MAX_BATCH = 256;
+  // One socket buffer takes the packets of all transfers of a loop, the
+  // default one overflows when hundreds of clients send at once. The kernel
+  // caps it at net.core.rmem_max.
+  private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private final int port;
+  private final Path root;
+  private final int maxBlockSize;
+  // Files being read, loaded once for all loops.
+  private final FileCache cache = new FileCache(FileCache.DEFAULT_CAPACITY);
+  private final EventLoop[] loops;
+
+  /**
+   * Constructor for the selector engine.
+   *
+   * @param port         The port number to listen on.
+   *
+   * @param rootDir      The directory files are read from and written to.
+   *
+   * @param loopCount    The number of event loop threads, more than one needs
+   *                     SO_REUSEPORT.
+   *
+   * @param maxBlockSize The largest block size clients may ask for.
+   *
+   * @throws IOException In case a channel or selector could not be opened.
+   */
+  public TFTPSelectorServer(int port, String rootDir, int loopCount, int maxBlockSize)
+      throws IOException {
+    this.port = port;
+    this.root = Paths.get(rootDir).toAbsolutePath().normalize();
+    this.maxBlockSize = maxBlockSize;
+    if (loopCount > 1 && !supportsReusePort()) {
+      System.out.println("SO_REUSEPORT is not supported here, one event loop has been set!");
+      loopCount = 1;
+    }
+    this.loops = new EventLoop[Math.max(1, loopCount)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(loops.length > 1);
+    }
+  }
+
+  /**
+   * Runs the event loops, the first one on the calling thread.
+   */
+  public void start() {
+    System.out.printf("Listening at port %d with %d event loop(s)\n", port, loops.length);
+    for (int i = 1; i < loops.length; i++) {
+      new Thread(loops[i], "tftp-loop-" + i).start();
+    }
+    loops[0].run();
+  }
+
+  private static boolean supportsReusePort() {
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * A thread owning one channel on the server port, a Selector to wait on it
+   * and the sessions of the clients that channel hears from.
+   */
+  private final class EventLoop implements Runnable {
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final Map<SocketAddress, TransferSession> sessions = new HashMap<>();
+    // Clients whose sessions still have packets waiting because the socket
+    // buffer was full, in the order they ran into it.
+    private final Set<SocketAddress> blocked = new LinkedHashSet<>();
+
+    EventLoop(boolean reusePort) throws IOException {
+      channel = DatagramChannel.open();
+      if (reusePort) {
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+      channel.bind(new InetSocketAddress(port));
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void run() {
+      long nextTick = System.nanoTime();
+      while (true) {
+        try {
+          selector.select(TICK_MILLIS);
+          selector.selectedKeys().clear();
+          if (key.isWritable()) {
+            flushBlocked();
+          }
+          receive();
+        } catch (IOException e) {
+          e.printStackTrace();
+          System.out.println("Channel failed, stopping the event loop.");
+          return;
+        }
+        long now = System.nanoTime();
+        if (now - nextTick >= 0) {
+          expire(now);
+          nextTick = now + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        }
+      }
+    }
+
+    private void receive() throws IOException {
+      for (int i = 0; i < MAX_BATCH; i++) {
+        in.clear();
+        SocketAddress from = channel.receive(in);
+        if (from == null) {
+          return;
+        }
+        in.flip();
+        onPacket((InetSocketAddress) from, in);
+      }
+    }
+
+    /**
+     * Retransmits for every session whose answer is overdue, and drops the
+     * ones that are finished then.
+     */
+    private void expire(long now) {
+      Iterator<Map.Entry<SocketAddress, TransferSession>> iterator = sessions.entrySet()
+          .iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<SocketAddress, TransferSession> entry = iterator.next();
+        TransferSession session = entry.getValue();
+        if (now - session.getDeadline() < 0) {
+          continue;
+        }
+        try {
+          session.onTimeout();
+          if (flush(entry.getKey(), session)) {
+            iterator.remove();
+          }
+        } catch (RuntimeException | Error e) {
+          iterator.remove();
+          drop(entry.getKey(), session, e);
+        }
+      }
+    }
+
+    private void onPacket(InetSocketAddress from, ByteBuffer packet) {
+      try {
+        dispatch(from, packet);
+      } catch (RuntimeException | Error e) {
+        drop(from, sessions.remove(from), e);
+      }
+    }
+
+    /**
+     * Ends a transfer that failed in a way the session did not expect, so the
+     * loop can go on with the others. The client gets ERROR 0.
+     *
+     * @param session The session, null if there is none.
+     */
+    private void drop(SocketAddress client, TransferSession session, Throwable e) {
+      e.printStackTrace();
+      System.out.println("Transfer with " + client + " failed, dropping it.");
+      blocked.remove(client);
+      if (session != null) {
+        try {
+          session.close();
+        } catch (RuntimeException | Error closeFailure) {
+          closeFailure.printStackTrace();
+        }
+      }
+      send(TransferSession.errorPacket(TFTPServer.ErrorCode.NOT_DEFINED), client);
+    }
+
+    private void dispatch(InetSocketAddress from, ByteBuffer packet) {
+      if (packet.remaining() < 2) {
+        return;
+      }
+      int opcode = packet.getShort(packet.position()) & 0xffff;
+      TransferSession session = sessions.get(from);
+
+      if (opcode == TFTPServer.OP_RRQ || opcode == TFTPServer.OP_WRQ) {
+        if (session != null && !session.isComplete()) {
+          // The client did not hear from the session yet and asked again,
+          // the retransmission answers it.
+          return;
+        }
+        if (session != null) {
+          session.close();
+        }
+        session = new TransferSession(from, root, maxBlockSize, cache);
+        session.start(packet);
+        if (flush(from, session)) {
+          sessions.remove(from);
+        } else {
+          sessions.put(from, session);
+        }
+      } else if (session == null) {
+        if (opcode == TFTPServer.OP_DAT || opcode == TFTPServer.OP_ACK) {
+          send(TransferSession.errorPacket(TFTPServer.ErrorCode.UNKNOWN_TRANSFER_ID), from);
+        } else if (opcode != TFTPServer.OP_ERR) {
+          send(TransferSession.errorPacket(TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION), from);
+        }
+      } else {
+        session.onPacket(packet);
+        if (flush(from, session)) {
+          sessions.remove(from);
+        }
+      }
+    }
+
+    /**
+     * Sends the packets a session has waiting, as many as the socket buffer
+     * takes. The rest goes out once the channel is writable again.
+     *
+     * @return True if the session is finished and has nothing left to send,
+     *         so it can be forgotten.
+     */
+    private boolean flush(SocketAddress to, TransferSession session) {
+      for (ByteBuffer packet; (packet = session.nextPacket()) != null; session.packetSent()) {
+        if (!send(packet, to)) {
+          if (blocked.add(to)) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+          return false;
+        }
+      }
+      return session.isFinished();
+    }
+
+    private void flushBlocked() {
+      List<SocketAddress> waiting = new ArrayList<>(blocked);
+      blocked.clear();
+      for (SocketAddress to : waiting) {
+        TransferSession session = sessions.get(to);
+        try {
+          if (session != null && flush(to, session)) {
+            sessions.remove(to);
+          }
+        } catch (RuntimeException | Error e) {
+          drop(to, sessions.remove(to), e);
+        }
+      }
+      if (blocked.isEmpty()) {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    /**
+     * @return False if the socket buffer is full and the packet has to wait.
+     */
+    private boolean send(ByteBuffer packet, SocketAddress to) {
+      try {
+        return channel.send(packet, to) > 0;
+      } catch (IOException e) {
+        // Lost like on the network, the retransmission takes care of it.
+        System.err.println("Could not send to " + to + ": " + e.getMessage());
+        return true;
+      }
+    }
+  }
+}
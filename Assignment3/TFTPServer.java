@@ -8,23 +8,31 @@ import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.TimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class TFTPServer {
 
   private final int TFTPPORT;
-  private static final int BUFSIZE = 516;
-  private static final int HEADERSIZE = 4;
-  private static final int OPPOS = 1;
-  private static final int RETRANSMISSION_TIME = 5000;
+  static final int BUFSIZE = 516;
+  static final int HEADERSIZE = 4;
+  static final int RETRANSMISSION_TIME = 5000;
 
   private final String ROOTDIR;
+  private final int MAXBLKSIZE;
+  // Files being read, loaded once for all threads.
+  private final FileCache cache = new FileCache(FileCache.DEFAULT_CAPACITY);
 
   public TFTPServer(int TFTPPORT, String ROOTDIR) {
+    this(TFTPPORT, ROOTDIR, TransferSession.MAX_BLOCK_SIZE);
+  }
+
+  public TFTPServer(int TFTPPORT, String ROOTDIR, int MAXBLKSIZE) {
     this.TFTPPORT = TFTPPORT;
     this.ROOTDIR = ROOTDIR;
+    this.MAXBLKSIZE = MAXBLKSIZE;
   }
 
   public enum ErrorCode {
@@ -62,74 +70,12 @@ public class TFTPServer {
   public static final int OP_DAT = 3;
   public static final int OP_ACK = 4;
   public static final int OP_ERR = 5;
-
-  private DatagramPacket getPacket;
-
-  private int countFirstAttempt = 0;
-  private int countSecondAttempt = 0;
-
-  /**
-   * Return error message corresponding to TFTP exception.
-   *
-   * @param socket   (socket to read from)
-   * @param errorNum (error number)
-   */
-  private void sendERR(DatagramSocket socket, int errorNum) {
-    ErrorCode errorCodeTftp = null;
-
-    switch (errorNum) {
-      case 0:
-        errorCodeTftp = ErrorCode.NOT_DEFINED;
-        break;
-      case 1:
-        errorCodeTftp = ErrorCode.FILE_NOT_FOUND;
-        break;
-      case 2:
-        errorCodeTftp = ErrorCode.ACCESS_VIOLATION;
-        break;
-      case 3:
-        errorCodeTftp = ErrorCode.DISK_FULL_OR_ALLOCATION_EXCEED;
-        break;
-      case 4:
-        errorCodeTftp = ErrorCode.ILLEGAL_TFTP_OPERATION;
-        break;
-      case 5:
-        errorCodeTftp = ErrorCode.UNKNOWN_TRANSFER_ID;
-        break;
-      case 6:
-        errorCodeTftp = ErrorCode.FILE_ALREADY_EXISTS;
-        break;
-      case 7:
-        errorCodeTftp = ErrorCode.NO_SUCH_USER;
-        break;
-      case 8: 
-        errorCodeTftp = ErrorCode.PREMATURE_TERMINATION; 
-        break;  
-      default:
-        break;
-    }
-
-    System.out.println("The error num is: " + (errorCodeTftp.getCode() - 1));
-    String codeMessage = errorCodeTftp.getMessage();
-    System.out.println("The message is: " + codeMessage);
-
-    ByteBuffer dataBuffer = ByteBuffer.allocate(codeMessage.length() + OP_ERR);
-    dataBuffer.putShort((short) OP_ERR);
-    dataBuffer.putShort((short) errorNum);
-    dataBuffer.put(codeMessage.getBytes());
-    DatagramPacket sendError = new DatagramPacket(dataBuffer.array(), dataBuffer.array().length);
-
-    try {
-      socket.send(sendError);
-      socket.close();
-    } catch (IOException e) {
-      System.err.println("Sent multiple error codes, user might have not received them!");
-    }
-
-  }
+  public static final int OP_OACK = 6;
 
   private void start() throws SocketException {
-    byte[] buf = new byte[BUFSIZE];
+    // Requests with options can be longer than a default block.
+    byte[] buf = new byte[HEADERSIZE + TransferSession.MAX_BLOCK_SIZE];
+    Path root = Paths.get(ROOTDIR).toAbsolutePath().normalize();
 
     // Create socket
     DatagramSocket socket = new DatagramSocket(null);
@@ -142,344 +88,78 @@ public class TFTPServer {
 
     // Loop to handle client requests
     while (true) {
+      DatagramPacket data = new DatagramPacket(buf, buf.length);
 
-      final InetSocketAddress clientAddress = receiveFrom(socket, buf);
-
-      // If clientAddress is null, an error occurred in receiveFrom()
-      if (clientAddress == null)
+      try {
+        socket.receive(data);
+      } catch (IOException e) {
+        e.printStackTrace();
         continue;
+      }
 
-      final StringBuffer requestedFile = new StringBuffer();
-      final int reqType = parseRQ(buf, requestedFile);
-
-      new Thread() {
-
-        public void run() {
-
-          try {
-            DatagramSocket sendSocket = new DatagramSocket(0);
-
-            // Connect to client
-            sendSocket.connect(clientAddress);
-
-            System.out.printf("%s request for %s from %s using port %d\n",
-                (reqType == OP_RRQ) ? "Read" : "Write", requestedFile,
-                clientAddress.getHostName(), clientAddress.getPort());
-
-            switch (reqType) {
-              case OP_RRQ:
-                requestedFile.insert(0, ROOTDIR + "/");
-                handleRQ(sendSocket, requestedFile.toString(), OP_RRQ);
-                break;
-              case OP_WRQ:
-                requestedFile.insert(0, ROOTDIR + "/");
-                handleRQ(sendSocket, requestedFile.toString(), OP_WRQ);
-                break;
-              default:
-                sendERR(sendSocket, TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION.getCode() - 1);
-                break;
-            }
-            
-            sendSocket.close();
-
-          } catch (SocketException e) {
-            System.err.println("Closing socket connection...");
-            e.printStackTrace();
-          } 
-        }
-      }.start();
-    }
-  }
-
-  /**
-   * Reads the first block of data, i.e., the request for an action (read or
-   * write).
-   *
-   * @param socket (socket to read from)
-   * @param buf    (where to store the read data)
-   * @return socketAddress (the socket address of the client)
-   */
-  private InetSocketAddress receiveFrom(DatagramSocket socket, byte[] buf) {
-    DatagramPacket data = new DatagramPacket(buf, buf.length);
-
-    try {
-      socket.receive(data);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    return new InetSocketAddress(data.getAddress(), data.getPort());
-  }
-
-  /**
-   * Parses the request in buf to retrieve the type of request and requestedFile.
-   *
-   * @param buf           (received request)
-   * @param requestedFile (name of file to read/write)
-   * @return opcode (request type: RRQ or WRQ)
-   */
-  private int parseRQ(byte[] buf, StringBuffer requestedFile) {
-    char[] characterBuf = new String(buf).toCharArray();
+      final InetSocketAddress clientAddress = new InetSocketAddress(data.getAddress(),
+          data.getPort());
+      final ByteBuffer request = ByteBuffer.wrap(Arrays.copyOf(buf, data.getLength()));
 
-    for (int i = 2; characterBuf[i] != '\u0000'; i++) {
-      requestedFile.append(characterBuf[i]);
+      // Each thread gets a session of its own, they share no transfer state.
+      new Thread(() -> serve(clientAddress, root, request)).start();
     }
-
-    return Short.valueOf(buf[0]) * 255 + Short.valueOf(buf[1]);
   }
 
-  // References:
-  // https://javapapers.com/java/java-tftp-client/
-  // https://coursepress.lnu.se/kurs/computer-networks-an-introduction/tftp-server-implementation-guidelines/
   /**
-   * Handles RRQ and WRQ requests.
+   * Runs one transfer on a socket of its own, connected to the client.
    *
-   * @param sendSocket    (socket used to send/receive packets)
-   * @param requestedFile (name of file to read/write)
-   * @param opcode        (RRQ or WRQ)
+   * @param clientAddress (the address of the client)
+   * @param root          (the directory to serve)
+   * @param request       (the read or write request)
    */
-  private void handleRQ(DatagramSocket sendSocket, String requestedFile, int opcode) {
-    byte[] buffer = new byte[BUFSIZE - HEADERSIZE];
-
-    Path path = Paths.get(requestedFile.split("\n")[0]);
-    File pathFile = path.toFile();
-
-    switch (opcode) {
-      case OP_RRQ:
-        if (!pathFile.exists()) {
-          sendERR(sendSocket, TFTPServer.ErrorCode.FILE_NOT_FOUND.getCode() - 1);
-        } else if (!pathFile.canWrite() || !pathFile.canRead()) {
-          sendERR(sendSocket, TFTPServer.ErrorCode.ACCESS_VIOLATION.getCode() - 1);
-        }
-
-        try {
-          FileInputStream inStream = new FileInputStream(pathFile);
-          short blockCounter = OPPOS;
-          int count;
-
-          boolean readFlag = true;
-          do {
-            int streamLen = inStream.read(buffer);
-
-            if (streamLen == -1) {
-              streamLen = 0;
-            }
-
-            count = streamLen % 512;
-
-            if (5 > countFirstAttempt && 5 > countSecondAttempt) {
-              ByteBuffer dataBuff = ByteBuffer.allocate(BUFSIZE + HEADERSIZE + 5);
-              dataBuff.putShort((short) OP_DAT);
-              dataBuff.putShort(blockCounter);
-              dataBuff.put(buffer);
-              DatagramPacket datagramPacketForSend = new DatagramPacket(dataBuff.array(),
-                  streamLen + HEADERSIZE);
-              readFlag = send_DATA_receive_ACK(blockCounter++, sendSocket, datagramPacketForSend);
-            }
-
-            if (countFirstAttempt >= 5
-                || countSecondAttempt >= 5
-                || !readFlag
-                || count != 0) {
-              countFirstAttempt = 0;
-              countSecondAttempt = 0;
-              break;
-            }
-
-          } while (true);
-
-          inStream.close();
-          sendSocket.close();
-
-        } catch (IOException e) {
-          sendERR(sendSocket, ErrorCode.NOT_DEFINED.getCode() - 1);
-        } catch (TimeoutException te) {
-          System.out.println("Timeout exception here..."); 
-          sendERR(sendSocket, ErrorCode.PREMATURE_TERMINATION.getCode() - 1);
-        }
-        break;
-
-      case OP_WRQ:
-        boolean writeFlag = true;
-
-        try {
-          short blockNum = OPPOS - 1;
-
-          if (pathFile.exists()) {
-            sendERR(sendSocket, 6);
-          } else {
+  private void serve(InetSocketAddress clientAddress, Path root, ByteBuffer request) {
+    // One byte more than the biggest block, so oversized ones are seen as such.
+    byte[] buf = new byte[HEADERSIZE + MAXBLKSIZE + 1];
+
+    try (DatagramSocket sendSocket = new DatagramSocket(0);
+        TransferSession session = new TransferSession(clientAddress, root, MAXBLKSIZE, cache)) {
+      // Connect to client
+      sendSocket.connect(clientAddress);
+      session.start(request);
+      send(sendSocket, session);
+
+      while (!session.isFinished()) {
+        long wait = TimeUnit.NANOSECONDS.toMillis(session.getDeadline() - System.nanoTime());
+
+        if (wait <= 0) {
+          session.onTimeout();
+        } else {
+          DatagramPacket received = new DatagramPacket(buf, buf.length);
+          sendSocket.setSoTimeout((int) wait);
 
-            FileOutputStream fileOutputStream = new FileOutputStream(pathFile);
-            int count = 0;
-
-            do {
-
-              if (5 >= countSecondAttempt && 5 >= countFirstAttempt && writeFlag) {
-
-                ByteBuffer bufferPutRequest;
-
-                bufferPutRequest = ByteBuffer.allocate(4);
-                bufferPutRequest.putShort((short) OP_ACK);
-                bufferPutRequest.putShort((short) blockNum++);
-
-                writeFlag = receive_DATA_send_ACK(blockNum, sendSocket, bufferPutRequest);
-
-                if (this.getPacket == null) {
-                  sendERR(sendSocket, 5);
-                  break;
-                } else {
-                  int packSize = getPacket.getLength() - HEADERSIZE;
-                  fileOutputStream.write(getPacket.getData(), OP_ACK, packSize);
-                  fileOutputStream.flush();
-                  count = packSize % 512;
-                }
-              }
-
-              if (count > 0
-                  || countFirstAttempt == 5
-                  || countSecondAttempt == 5
-                  || !writeFlag) {
-                if (count > 0) {
-                  ByteBuffer bufferPutRequest;
-
-                  bufferPutRequest = ByteBuffer.allocate(4);
-                  bufferPutRequest.putShort((short) OP_ACK);
-                  bufferPutRequest.putShort((short) blockNum);
-
-                  DatagramPacket finalAck = new DatagramPacket(bufferPutRequest.array(),
-                      bufferPutRequest.array().length);
-                  sendSocket.send(finalAck);
-                }
-
-                countFirstAttempt = 0;
-                countSecondAttempt = 0;
-                break;
-              }
-
-            } while (true);
-
-            fileOutputStream.close();
-            sendSocket.close();
+          try {
+            sendSocket.receive(received);
+            session.onPacket(ByteBuffer.wrap(buf, 0, received.getLength()));
+          } catch (SocketTimeoutException ste) {
+            session.onTimeout();
           }
-        } catch (IOException e) {
-          sendERR(sendSocket, 0);
-        } catch (TimeoutException te) {
-          System.out.println("Timeout exception here..."); 
-          sendERR(sendSocket, ErrorCode.PREMATURE_TERMINATION.getCode() - 1);
         }
-        break;
-      default: 
-      System.err.println("Invalid request. Sending an error packet.");
-      sendERR(sendSocket, TFTPServer.ErrorCode.NOT_DEFINED.getCode() - 1);
-      return; 
-    }
-  }
-
-  // References:
-  // https://javapapers.com/java/java-tftp-client/
-  // https://coursepress.lnu.se/kurs/computer-networks-an-introduction/tftp-server-implementation-guidelines/
-  /**
-   * Return boolean when receiving data and sending acknowledgement during
-   * transmissions.
-   *
-   * @param blockCounter   (the counter for the number of datagramSocket blocks)
-   * @param datagramSocket (socket for packet delivery service)
-   * @param bufPut         (data buffer for the content)
-   * @return (True or False)
-   */
-  private boolean receive_DATA_send_ACK(short blockCounter, DatagramSocket datagramSocket, ByteBuffer bufPut) throws TimeoutException {
-
-    DatagramPacket Ack = new DatagramPacket(bufPut.array(), bufPut.array().length);
-    byte[] buffer = new byte[BUFSIZE];
-    DatagramPacket receivingPacket = new DatagramPacket(buffer, buffer.length);
-    int sum;
-
-    try {
-      datagramSocket.send(Ack);
-      datagramSocket.setSoTimeout(RETRANSMISSION_TIME);
-      datagramSocket.receive(receivingPacket);
-
-      this.getPacket = receivingPacket;
-      sum = (buffer[2] << 8) | (buffer[3] & 255);
-
-      if (blockCounter == sum) {
-        System.out.println("Acknowledgment arrived from: " + sum);
-      } else if (6 > countFirstAttempt) {
-        countFirstAttempt++;
-        return receive_DATA_send_ACK(blockCounter, datagramSocket, bufPut);
-      } else {
-        sendERR(datagramSocket, TFTPServer.ErrorCode.NOT_DEFINED.getCode() - 1);
-        return false;
+        send(sendSocket, session);
       }
-      countFirstAttempt = 0;
 
     } catch (IOException e) {
-      // System.out.println("exception");
-      countSecondAttempt++;
-
-      if (6 > countSecondAttempt) {
-        System.out.println(
-            "Error has occurred for " + blockCounter + " after " + countSecondAttempt + " attempts");
-        return receive_DATA_send_ACK(blockCounter, datagramSocket, bufPut);
-      } else {
-        // System.out.println("exception else");
-        datagramSocket.close();
-        return false;
-      }
+      System.err.println("Closing socket connection...");
+      e.printStackTrace();
     }
-    return true;
   }
 
-  // References:
-  // https://javapapers.com/java/java-tftp-client/
-  // https://coursepress.lnu.se/kurs/computer-networks-an-introduction/tftp-server-implementation-guidelines/
   /**
-   * Return boolean when sending data and receiving acknowledgement during
-   * transmissions.
+   * Sends every packet the session has waiting.
    *
-   * @param blockCounter   (the counter for the number of datagramSocket blocks)
-   * @param datagramSocket (socket for packet delivery service)
-   * @param packet         (the packet for sending data content)
-   * @return (True or False)
+   * @param socket  (socket connected to the client)
+   * @param session (the transfer)
    */
-  private boolean send_DATA_receive_ACK(short blockCounter, DatagramSocket datagramSocket, DatagramPacket packet) throws TimeoutException {
-
-    byte[] buffer = new byte[BUFSIZE];
-    DatagramPacket receivingPacket = new DatagramPacket(buffer, buffer.length);
-    int sum;
-
-    try {
-      datagramSocket.send(packet);
-      datagramSocket.setSoTimeout(RETRANSMISSION_TIME);
-      datagramSocket.receive(receivingPacket);
-      sum = (buffer[2] << 8) | (buffer[3] & 255);
-
-      if (blockCounter == sum) {
-        System.out.println("Acknowledgement sent by: " + sum);
-        countSecondAttempt = 0;
-      } else if (6 > countFirstAttempt) {
-        countFirstAttempt++;
-        send_DATA_receive_ACK(blockCounter, datagramSocket, packet);
-      } else {
-        sendERR(datagramSocket, ErrorCode.NOT_DEFINED.getCode() - 1);
-        return false;
-      }
-      countFirstAttempt = 0;
-
-    } catch (SocketTimeoutException ste) {
-      System.out.println("Socket timeout occurred..."); 
-      send_DATA_receive_ACK(blockCounter, datagramSocket, packet);
-    } catch (IOException e) {
-      countSecondAttempt++;
-      System.out.println("Second attempt now...");
-      if (6 > countSecondAttempt) {
-        send_DATA_receive_ACK(blockCounter, datagramSocket, packet);
-      } else {
-        System.out.println("Closing socket connection...");
-        datagramSocket.close();
-        return false;
-      }
-    } 
-    return true;
+  private void send(DatagramSocket socket, TransferSession session) throws IOException {
+    for (ByteBuffer packet; (packet = session.nextPacket()) != null; session.packetSent()) {
+      socket.send(new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(),
+          packet.remaining()));
+    }
   }
 
   // References:
@@ -490,9 +170,9 @@ public class TFTPServer {
     int portNumber;
     String directory;
 
-    if (args.length != 2) {
-      System.err.print("Incorrect number of arguments, should be 2 max.");
-      System.out.println("i.e --> java TFTPServer 69 tftpserverdir");
+    if (args.length < 2 || args.length > 4) {
+      System.err.print("Incorrect number of arguments, should be 4 max.");
+      System.out.println("i.e --> java TFTPServer 69 tftpserverdir ['nio' | 'thread' ['maxblksize']]");
       System.exit(0);
     }
 
@@ -522,16 +202,45 @@ public class TFTPServer {
 
     directory = args[1];
 
-    TFTPServer server = new TFTPServer(portNumber, directory);
+    // The event driven engine serves all transfers from a few threads, the
+    // thread per transfer engine is kept for comparison.
+    String mode = args.length >= 3 ? args[2] : "nio";
+    if (!mode.equals("nio") && !mode.equals("thread")) {
+      System.out.println("Unknown mode, the default mode nio has been set!");
+      mode = "nio";
+    }
+
+    // The largest block a client may ask for with the blksize option, the MTU
+    // towards the client can lower it further.
+    int maxBlockSize = TransferSession.MAX_BLOCK_SIZE;
+    if (args.length == 4) {
+      try {
+        maxBlockSize = Integer.parseInt(args[3]);
+      } catch (NumberFormatException nfe) {
+        maxBlockSize = -1;
+      }
+      if (maxBlockSize < 512 || maxBlockSize > TransferSession.MAX_BLOCK_SIZE) {
+        System.out.println("Invalid maximum block size, the default "
+            + TransferSession.MAX_BLOCK_SIZE + " has been set!");
+        maxBlockSize = TransferSession.MAX_BLOCK_SIZE;
+      }
+    }
 
     System.out.println("-------------------------------------------------------------------------");
     System.out.println("Port number is: " + portNumber);
     System.out.println("Serving directory is: /" + directory);
+    System.out.println("Mode is: " + mode);
+    System.out.println("Maximum block size is: " + maxBlockSize);
     System.out.println("-------------------------------------------------------------------------");
 
     try {
-      server.start();
-    } catch (SocketException e) {
+      if (mode.equals("nio")) {
+        new TFTPSelectorServer(portNumber, directory,
+            Runtime.getRuntime().availableProcessors(), maxBlockSize).start();
+      } else {
+        new TFTPServer(portNumber, directory, maxBlockSize).start();
+      }
+    } catch (IOException e) {
       e.printStackTrace();
     }
 
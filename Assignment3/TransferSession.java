@@ -0,0 +1,807 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything one read (RRQ) or write (WRQ) transfer keeps track of: the file,
+ * the block numbers, the packets waiting to be sent, the retry budget and the
+ * retransmission deadline. Nothing of it is shared, so transfers running side
+ * by side can't get in each other's way.
+ *
+ * <p>The session does no I/O on the network itself. The engine hands it the
+ * packets of its client and tells it when the deadline has passed, then sends
+ * what nextPacket returns until it returns null, so the thread engine and the
+ * selector engine share it. A read is served from the copy of its file in
+ * the shared FileCache if the file fits there, sessions reading the same file
+ * take their blocks from the same memory then.
+ *
+ * <p>Requests may carry options (RFC 2347). The server answers those it
+ * accepts with an OACK instead of the first DATA or ACK, the client
+ * acknowledges it with ACK 0 or starts sending DATA 1. With blksize (RFC 2348)
+ * bigger blocks mean fewer round trips, a 100 MB file takes some 1600 of them
+ * with 64 KB blocks instead of 200000. With windowsize (RFC 7440) a window of
+ * blocks goes out before an ACK is due, so a transfer is no longer held to
+ * one block per round trip. With timeout and tsize (RFC 2349) the client sets
+ * the retransmission timeout and learns the file size up front. A client that
+ * sends no options gets plain RFC 1350: 512 byte blocks, one at a time.
+ *
+ * <p>Unless the client sets a timeout, the session estimates the round trip
+ * time (Jacobson/Karels, RFC 6298) and retransmits after the smoothed round
+ * trip time plus four times its variation, so a lost packet on a LAN costs
+ * milliseconds instead of seconds. Only packets that went out once are timed
+ * (Karn's rule), an answer to a retransmitted one could belong to either
+ * copy. Every timeout in a row doubles the wait, up to MAX_RETRIES.
+ */
+final class TransferSession implements Closeable {
+
+  private static final int DEFAULT_BLOCK_SIZE = TFTPServer.BUFSIZE - TFTPServer.HEADERSIZE;
+  // The range RFC 2348 allows for blksize.
+  private static final int MIN_BLOCK_SIZE = 8;
+  static final int MAX_BLOCK_SIZE = 65464;
+  // IP and UDP headers around a block, it has to fit the MTU with them.
+  private static final int IPV4_OVERHEAD = 20 + 8;
+  private static final int IPV6_OVERHEAD = 40 + 8;
+  // RFC 7440 allows windows of up to 65535 blocks. Beyond a few dozen they
+  // only overflow the socket buffers at either end, and every loss costs a
+  // whole window.
+  private static final int MAX_WINDOW_SIZE = 64;
+  // The retransmission timeout before the first round trip was measured
+  // (RFC 6298), and its bounds. The fixed timeout of the old server is the
+  // ceiling now. The floor is well above round trips on a LAN, a client that
+  // stalls for a moment should not get every block twice.
+  private static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long MAX_RTO_NANOS = TimeUnit.MILLISECONDS
+      .toNanos(TFTPServer.RETRANSMISSION_TIME);
+  private static final int MAX_RETRIES = 5;
+  // How long the final ACK of an upload is kept around, in case it got lost
+  // and the client sends its last block again.
+  private static final long DALLY_NANOS = 2 * MAX_RTO_NANOS;
+  // The range RFC 2349 allows for timeout, in seconds.
+  private static final int MIN_TIMEOUT = 1;
+  private static final int MAX_TIMEOUT = 255;
+
+  private final InetSocketAddress client;
+  private final Path root;
+  private final int maxBlockSize;
+  private final FileCache cache;
+  private Path path;
+  private FileChannel file;
+  // The cached copy of the file being read and this session's view of it,
+  // null if the file is read from the channel.
+  private FileCache.Entry cached;
+  private ByteBuffer contents;
+  private boolean read;
+  private int blockSize = DEFAULT_BLOCK_SIZE;
+  private int windowSize = 1;
+
+  // The last ACK or OACK, kept for retransmission, or an ERROR.
+  private ByteBuffer control;
+  private boolean controlPending;
+  // Whether the waiting control packet goes out for the first time.
+  private boolean controlFresh;
+  // The DATA block being sent and its number.
+  private ByteBuffer data;
+  private long dataBlock = -1;
+
+  // Block numbers below count from 1 without wrapping around, on the wire
+  // only their lower 16 bits are sent.
+
+  // Read: the last block, the short one, the highest block the client
+  // acknowledged (-1 until it acknowledged the OACK), the next block to send
+  // and the highest block sent so far.
+  private long lastBlock;
+  private long acked;
+  private long next = 1;
+  private long highest;
+  // Whether the window after acked went out again already. Once per ACK
+  // number is enough, the client answers the blocks sent again with ACKs of
+  // its own.
+  private boolean rewound;
+
+  // Write: the highest block written, all before it are written too, and the
+  // number of blocks written since the last ACK.
+  private long written;
+  private int unacked;
+  // Whether the ACK that tells the client about a missing block went out.
+  private boolean gapAcked;
+
+  // The smoothed round trip time and its variation, 0 before the first
+  // sample, and the retransmission timeout that follows from them.
+  private long srtt;
+  private long rttvar;
+  private long rto = INITIAL_RTO_NANOS;
+  // Set by the timeout option, the timeout neither adapts nor backs off then.
+  private boolean fixedTimeout;
+  // The block whose round trip is being timed, the OACK counts as block 0 of
+  // a read, the ACK sent last as its block of a write. -1 while none is.
+  private long timedBlock = -1;
+  private long timedAt;
+
+  // Timeouts in a row, each one doubles the wait.
+  private int retries;
+  private long deadline;
+  // All data is through, an upload only waits for a repeated last block.
+  private boolean complete;
+  // Nothing more to wait for, the engine can forget the session once the
+  // packets still waiting are sent.
+  private boolean finished;
+
+  /**
+   * Constructor for the session.
+   *
+   * @param client       The address of the client.
+   *
+   * @param root         The absolute, normalized directory files are served
+   *                     from.
+   *
+   * @param maxBlockSize The configured limit for blksize, the MTU towards the
+   *                     client may lower it.
+   *
+   * @param cache        The copies of files being read, shared by all
+   *                     sessions of the engine.
+   */
+  TransferSession(InetSocketAddress client, Path root, int maxBlockSize, FileCache cache) {
+    this.client = client;
+    this.root = root;
+    this.maxBlockSize = maxBlockSize;
+    this.cache = cache;
+  }
+
+  /**
+   * Finds the largest block size that reaches a client in one datagram: the
+   * MTU of the interface the route to the client goes through, less the IP,
+   * UDP and TFTP headers. Bigger blocks would work too, but get fragmented,
+   * and losing any fragment loses the whole block.
+   *
+   * @param client The address of the client.
+   *
+   * @param limit  The configured limit.
+   *
+   * @return The limit, or less if the MTU is smaller.
+   */
+  private static int blockSizeLimit(InetAddress client, int limit) {
+    int overhead = (client instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD)
+        + TFTPServer.HEADERSIZE;
+    try (DatagramSocket probe = new DatagramSocket()) {
+      // Connecting a datagram socket sends nothing, it only looks up the route
+      // and with it the local address.
+      probe.connect(client, 9);
+      NetworkInterface nic = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+      if (nic != null && nic.getMTU() > overhead) {
+        return Math.min(limit, nic.getMTU() - overhead);
+      }
+    } catch (IOException | SecurityException e) {
+      // No route to look at, the limit has to do.
+    }
+    return limit;
+  }
+
+  /**
+   * Starts the transfer for a request. What to answer with, the first DATA
+   * blocks, the ACK of a write request, an OACK or an ERROR, is waiting in
+   * nextPacket afterwards.
+   *
+   * @param request The request packet, opcode included.
+   */
+  void start(ByteBuffer request) {
+    if (request.remaining() < 2) {
+      fail(TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION);
+      return;
+    }
+    int opcode = request.getShort() & 0xffff;
+    if (opcode != TFTPServer.OP_RRQ && opcode != TFTPServer.OP_WRQ) {
+      fail(TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION);
+      return;
+    }
+    String name = readString(request);
+    String mode = readString(request);
+    if (name == null || mode == null || name.isEmpty()) {
+      fail(TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION);
+      return;
+    }
+    Map<String, String> options = new LinkedHashMap<>();
+    while (request.hasRemaining()) {
+      String option = readString(request);
+      String value = readString(request);
+      if (option == null || value == null) {
+        // A broken option list is ignored as a whole, like options the server
+        // does not know.
+        options.clear();
+        break;
+      }
+      options.put(option.toLowerCase(Locale.ROOT), value);
+    }
+    read = opcode == TFTPServer.OP_RRQ;
+    System.out.printf("%s request for %s from %s using port %d\n", read ? "Read" : "Write",
+        name, client.getHostString(), client.getPort());
+
+    Path resolved;
+    try {
+      resolved = root.resolve(name).normalize();
+    } catch (InvalidPathException e) {
+      // A name the file system can't have, like a:b on Windows.
+      fail(TFTPServer.ErrorCode.ACCESS_VIOLATION);
+      return;
+    }
+    if (!resolved.startsWith(root) || resolved.equals(root)) {
+      fail(TFTPServer.ErrorCode.ACCESS_VIOLATION);
+      return;
+    }
+    try {
+      if (read) {
+        if (!Files.isRegularFile(resolved)) {
+          throw new NoSuchFileException(name);
+        }
+        file = FileChannel.open(resolved, StandardOpenOption.READ);
+        try {
+          cached = cache.acquire(resolved, file);
+        } catch (IOException e) {
+          // Read from the channel then.
+          System.err.println("Could not cache " + resolved + ": " + e.getMessage());
+        }
+        if (cached != null) {
+          contents = cached.view();
+          // The copy does not need the channel, no need to hold a descriptor
+          // per client.
+          closeFile();
+        }
+      } else {
+        file = FileChannel.open(resolved, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE);
+        // Only a file this session created may be deleted when it fails.
+        path = resolved;
+      }
+    } catch (NoSuchFileException e) {
+      fail(TFTPServer.ErrorCode.FILE_NOT_FOUND);
+      return;
+    } catch (FileAlreadyExistsException e) {
+      fail(TFTPServer.ErrorCode.FILE_ALREADY_EXISTS);
+      return;
+    } catch (IOException | SecurityException e) {
+      fail(TFTPServer.ErrorCode.ACCESS_VIOLATION);
+      return;
+    }
+
+    Map<String, String> accepted;
+    try {
+      accepted = negotiate(options);
+      if (read) {
+        // A file that is a multiple of the block size ends with an empty
+        // block.
+        lastBlock = fileSize() / blockSize + 1;
+      }
+    } catch (IOException e) {
+      fail(TFTPServer.ErrorCode.NOT_DEFINED);
+      return;
+    }
+    if (accepted == null) {
+      return;
+    }
+    if (!accepted.isEmpty()) {
+      oack(accepted);
+      // No DATA before the client acknowledged the OACK.
+      acked = -1;
+    } else if (!read) {
+      ack(0, true);
+    }
+    arm();
+  }
+
+  /**
+   * Handles a packet of the client.
+   *
+   * @param received The packet, opcode included.
+   */
+  void onPacket(ByteBuffer received) {
+    if (finished || received.remaining() < 4) {
+      return;
+    }
+    int opcode = received.getShort() & 0xffff;
+    int number = received.getShort() & 0xffff;
+
+    if (opcode == TFTPServer.OP_ERR) {
+      System.out.println("Client aborted " + this);
+      abort();
+    } else if (read && opcode == TFTPServer.OP_ACK) {
+      onAck(number);
+    } else if (!read && opcode == TFTPServer.OP_DAT) {
+      onData(number, received);
+    } else {
+      fail(TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION);
+    }
+  }
+
+  /**
+   * Called once the deadline has passed without an answer. A read goes back
+   * to the first block the client has not acknowledged and sends the window
+   * again from there. A write acknowledges the last block it has in order,
+   * which with a window need not be the last ACK it sent, so the client sends
+   * again from there (RFC 7440).
+   */
+  void onTimeout() {
+    if (finished) {
+      return;
+    }
+    if (complete) {
+      finish();
+      return;
+    }
+    if (++retries > MAX_RETRIES) {
+      System.out.println("Giving up on " + this + " after " + MAX_RETRIES
+          + " retransmissions");
+      abort();
+      return;
+    }
+    long wait = fixedTimeout ? rto : Math.min(rto << retries, MAX_RTO_NANOS);
+    deadline = System.nanoTime() + wait;
+    // Whatever is timed now goes out again.
+    timedBlock = -1;
+    if (read && acked >= 0) {
+      next = acked + 1;
+    } else if (!read && written > 0) {
+      ack(written, false);
+    } else {
+      // The OACK or ACK 0 went missing.
+      controlPending = true;
+      controlFresh = false;
+    }
+  }
+
+  /**
+   * @return The next packet to send, the same one until packetSent is
+   *         called, or null if there is nothing to send.
+   */
+  ByteBuffer nextPacket() {
+    if (controlPending) {
+      control.rewind();
+      return control;
+    }
+    if (finished || !read || next > windowEnd()) {
+      return null;
+    }
+    if (dataBlock != next && !readBlock(next)) {
+      return nextPacket();
+    }
+    data.rewind();
+    return data;
+  }
+
+  /**
+   * Tells the session the packet nextPacket returned went out.
+   */
+  void packetSent() {
+    if (controlPending) {
+      controlPending = false;
+      if (controlFresh && !finished) {
+        time(read ? 0 : written);
+      }
+    } else if (read && next <= windowEnd()) {
+      if (next > highest) {
+        highest = next;
+        if (timedBlock < 0) {
+          time(next);
+        }
+      }
+      next++;
+    }
+  }
+
+  /**
+   * @return The System.nanoTime after which onTimeout is due.
+   */
+  long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * @return True once all data is through, an upload may still answer a
+   *         repeated last block.
+   */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * @return True once there is nothing more to wait for, packets may still
+   *         wait to be sent though.
+   */
+  boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Ends the session, a transfer that is not complete counts as failed.
+   */
+  @Override
+  public void close() {
+    if (!complete) {
+      abort();
+    } else {
+      finish();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return (read ? "read by " : "write by ") + client;
+  }
+
+  /**
+   * Picks the options to go along with, and applies them.
+   *
+   * @param options The options of the request, by lower case name.
+   *
+   * @return The accepted options and their values, for the OACK, or null if
+   *         the transfer can't go ahead, the ERROR is waiting then.
+   *
+   * @throws IOException In case the file size or free space is unknown.
+   */
+  private Map<String, String> negotiate(Map<String, String> options) throws IOException {
+    Map<String, String> accepted = new LinkedHashMap<>();
+    // The client has to accept any smaller value the server answers with.
+    int size = intOption(options, "blksize", MIN_BLOCK_SIZE, MAX_BLOCK_SIZE);
+    if (size > 0) {
+      blockSize = Math.min(size, blockSizeLimit(client.getAddress(), maxBlockSize));
+      accepted.put("blksize", Integer.toString(blockSize));
+    }
+    int window = intOption(options, "windowsize", 1, 65535);
+    if (window > 0) {
+      windowSize = Math.min(window, MAX_WINDOW_SIZE);
+      accepted.put("windowsize", Integer.toString(windowSize));
+    }
+    int timeout = intOption(options, "timeout", MIN_TIMEOUT, MAX_TIMEOUT);
+    if (timeout > 0) {
+      rto = TimeUnit.SECONDS.toNanos(timeout);
+      fixedTimeout = true;
+      accepted.put("timeout", Integer.toString(timeout));
+    }
+    String tsize = options.get("tsize");
+    if (tsize != null) {
+      if (read) {
+        // A reading client sends 0 and gets the size of the file.
+        accepted.put("tsize", Long.toString(fileSize()));
+      } else {
+        try {
+          long length = Long.parseLong(tsize);
+          // A writing client tells the size, so a file that can't fit fails
+          // right away instead of after most of it was sent.
+          if (length > Files.getFileStore(path).getUsableSpace()) {
+            fail(TFTPServer.ErrorCode.DISK_FULL_OR_ALLOCATION_EXCEED);
+            return null;
+          }
+          if (length >= 0) {
+            accepted.put("tsize", tsize);
+          }
+        } catch (NumberFormatException e) {
+          // Ignored like an unknown option.
+        }
+      }
+    }
+    return accepted;
+  }
+
+  /**
+   * @return The value of the option, or -1 if it is missing, not a number or
+   *         out of range, which ignores it like an unknown option.
+   */
+  private static int intOption(Map<String, String> options, String name, int min, int max) {
+    String value = options.get(name);
+    if (value == null) {
+      return -1;
+    }
+    try {
+      int number = Integer.parseInt(value);
+      return number >= min && number <= max ? number : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return The highest block of a read that may be sent before the next ACK.
+   */
+  private long windowEnd() {
+    return acked < 0 ? 0 : Math.min(acked + windowSize, lastBlock);
+  }
+
+  private void onAck(int number) {
+    if (acked < 0) {
+      // ACK 0 acknowledges the OACK.
+      if (number == 0) {
+        acked = 0;
+        sample(0);
+        arm();
+      }
+      return;
+    }
+    long block = acked + ((number - acked) & 0xffff);
+    if (block == acked) {
+      // With a window, the client repeating its last ACK while more blocks
+      // are out means it missed the next one (RFC 7440), waiting for the
+      // timeout would stall the window. Without one it is a duplicate, and
+      // answering it would send every block twice from then on (Sorcerer's
+      // Apprentice). A client repeats it for every block of the window after
+      // the gap, answering each of those would be the same thing again.
+      if (windowSize > 1 && highest > acked && !rewound) {
+        rewound = true;
+        next = acked + 1;
+        timedBlock = -1;
+      }
+      return;
+    }
+    // The client can't acknowledge what was never sent.
+    if (block > highest) {
+      return;
+    }
+    acked = block;
+    sample(acked);
+    arm();
+    if (acked == lastBlock) {
+      complete = true;
+      finish();
+      return;
+    }
+    // The ACKs are cumulative. One for a block before the last one sent means
+    // the client missed the next one, the window starts again after it.
+    next = acked + 1;
+    rewound = next <= highest;
+    if (rewound) {
+      timedBlock = -1;
+    }
+  }
+
+  private void onData(int number, ByteBuffer received) {
+    if (number == ((written + 1) & 0xffff) && !complete) {
+      if (received.remaining() > blockSize) {
+        fail(TFTPServer.ErrorCode.ILLEGAL_TFTP_OPERATION);
+        return;
+      }
+      int length = received.remaining();
+      long position = written * blockSize;
+      try {
+        while (received.hasRemaining()) {
+          position += file.write(received, position);
+        }
+      } catch (IOException e) {
+        fail(TFTPServer.ErrorCode.DISK_FULL_OR_ALLOCATION_EXCEED);
+        return;
+      }
+      sample(written);
+      written++;
+      unacked++;
+      gapAcked = false;
+      if (length < blockSize) {
+        complete = true;
+        closeFile();
+        ack(written, true);
+        deadline = System.nanoTime() + Math.max(DALLY_NANOS, 2 * rto);
+        return;
+      }
+      if (unacked >= windowSize) {
+        ack(written, true);
+      }
+      arm();
+      return;
+    }
+
+    if (number == (written & 0xffff)) {
+      // The ACK got lost, the client sent the block again.
+      ack(written, false);
+    } else if (!complete && !gapAcked) {
+      // A block went missing, the ACK of the last one in order makes the
+      // client send the window again from there. Once is enough, the rest
+      // of the window it already sent is out of order too.
+      gapAcked = true;
+      ack(written, false);
+    }
+  }
+
+  private long fileSize() throws IOException {
+    return cached != null ? cached.size() : file.size();
+  }
+
+  /**
+   * Reads a block of a read into the DATA packet, from the cached copy if
+   * there is one.
+   *
+   * @return False if the file could not be read, the ERROR is waiting then.
+   */
+  private boolean readBlock(long block) {
+    if (data == null) {
+      data = ByteBuffer.allocate(TFTPServer.HEADERSIZE + blockSize);
+    }
+    data.clear();
+    data.putShort((short) TFTPServer.OP_DAT).putShort((short) block);
+    long position = (block - 1) * blockSize;
+    if (contents != null) {
+      // Blocks past the end of the copy don't exist, the last one is cut
+      // short or empty.
+      int start = (int) Math.min(position, contents.capacity());
+      contents.limit(Math.min(start + blockSize, contents.capacity())).position(start);
+      data.put(contents);
+      data.flip();
+      dataBlock = block;
+      return true;
+    }
+    try {
+      while (data.hasRemaining()) {
+        int n = file.read(data, position + data.position() - TFTPServer.HEADERSIZE);
+        if (n == -1) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      fail(TFTPServer.ErrorCode.NOT_DEFINED);
+      return false;
+    }
+    data.flip();
+    dataBlock = block;
+    return true;
+  }
+
+  /**
+   * Makes an ACK wait to be sent.
+   *
+   * @param fresh False if the block was acknowledged before, it is not timed
+   *              then.
+   */
+  private void ack(long block, boolean fresh) {
+    if (control == null || control.capacity() < TFTPServer.HEADERSIZE) {
+      control = ByteBuffer.allocate(TFTPServer.HEADERSIZE);
+    }
+    control.clear();
+    control.putShort((short) TFTPServer.OP_ACK).putShort((short) block);
+    control.flip();
+    controlPending = true;
+    controlFresh = fresh;
+    if (!fresh) {
+      timedBlock = -1;
+    }
+    unacked = 0;
+  }
+
+  private void oack(Map<String, String> accepted) {
+    control = ByteBuffer.allocate(TFTPServer.BUFSIZE);
+    control.putShort((short) TFTPServer.OP_OACK);
+    for (Map.Entry<String, String> option : accepted.entrySet()) {
+      control.put(option.getKey().getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0);
+      control.put(option.getValue().getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0);
+    }
+    control.flip();
+    controlPending = true;
+    controlFresh = true;
+  }
+
+  /**
+   * Restarts the retransmission deadline after progress, without the backoff.
+   */
+  private void arm() {
+    retries = 0;
+    deadline = System.nanoTime() + rto;
+  }
+
+  /**
+   * Starts timing the round trip of a block that just went out for the
+   * first time, unless one is timed already.
+   */
+  private void time(long block) {
+    if (timedBlock < 0) {
+      timedBlock = block;
+      timedAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * Takes a round trip sample once the timed block is answered, an ACK of a
+   * read covers it, a write answers it with the next block.
+   *
+   * @param block The block that was answered.
+   */
+  private void sample(long block) {
+    if (timedBlock < 0 || block < timedBlock) {
+      return;
+    }
+    timedBlock = -1;
+    if (fixedTimeout) {
+      return;
+    }
+    long rtt = System.nanoTime() - timedAt;
+    if (srtt == 0) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    } else {
+      rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+      srtt = (7 * srtt + rtt) / 8;
+    }
+    rto = Math.max(MIN_RTO_NANOS, Math.min(srtt + 4 * rttvar, MAX_RTO_NANOS));
+  }
+
+  private void fail(TFTPServer.ErrorCode error) {
+    abort();
+    control = errorPacket(error);
+    controlPending = true;
+  }
+
+  private void abort() {
+    finish();
+    if (path != null && !complete) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      // Once only, by the time the session is closed a new transfer may have
+      // created a file of the same name.
+      path = null;
+    }
+  }
+
+  private void finish() {
+    finished = true;
+    closeFile();
+    if (cached != null) {
+      cache.release(cached);
+      cached = null;
+      contents = null;
+    }
+  }
+
+  private void closeFile() {
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    file = null;
+  }
+
+  /**
+   * @return The zero terminated string at the position of the packet, or
+   *         null if it is not terminated.
+   */
+  private static String readString(ByteBuffer packet) {
+    int start = packet.position();
+    for (int i = start; i < packet.limit(); i++) {
+      if (packet.get(i) == 0) {
+        byte[] bytes = new byte[i - start];
+        packet.get(bytes);
+        packet.get();
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return An ERROR packet with the code and message of the error.
+   */
+  static ByteBuffer errorPacket(TFTPServer.ErrorCode error) {
+    byte[] message = error.getMessage().getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer packet = ByteBuffer.allocate(TFTPServer.HEADERSIZE + message.length + 1);
+    packet.putShort((short) TFTPServer.OP_ERR).putShort((short) (error.getCode() - 1));
+    packet.put(message).put((byte) 0);
+    packet.flip();
+    return packet;
+  }
+}
@@ -0,0 +1,88 @@
+import pytest
+import os
+import socket
+from concurrent.futures import ThreadPoolExecutor
+
+from tftpclient import OP
+
+# The files made by genfiles.sh
+FIXTURES = [b'f50b.bin', b'f500b.bin', b'f3blks.bin', b'f512blks.bin']
+# Transfers of each kind that run at the same time
+TRANSFERS = 150
+
+
+# Init client
+@pytest.fixture(scope="module")
+def client():
+    import tftpclient
+    return tftpclient.TFTPClient(('localhost', 9000), os.getcwd() + '/tftpserverdir')
+
+
+def exchange(client, sock, req, addr):
+    # Send a packet and wait for the answer, sending it again on a timeout
+    for attempt in range(3):
+        sock.sendto(req, addr)
+        try:
+            resp, ca = sock.recvfrom(1024)
+            return client.parsePacket(resp), ca
+        except socket.timeout:
+            continue
+    raise ValueError('Timeout waiting for the server.')
+
+
+def get(client, fn):
+    buf = b''
+    with client.newSocket() as sock:
+        pkt, ca = exchange(client, sock, client.createRequest(OP.RRQ, fn), client.remote)
+        ebn = 1
+        while True:
+            if pkt['op'] != OP.DAT:
+                raise ValueError(f'Opcode should be DAT is {pkt["op"]}.')
+            if pkt['bn'] == ebn & 0xffff:
+                buf += pkt['data']
+                ebn += 1
+            if len(pkt['data']) < 512:
+                sock.sendto(client.createACK(pkt['bn']), ca)
+                break
+            pkt, ca = exchange(client, sock, client.createACK(pkt['bn']), ca)
+
+    if buf != open(client.basedir / os.fsdecode(fn), 'rb').read():
+        raise ValueError(f'{fn} is not the same.')
+
+    return True
+
+
+def put(client, fn, i):
+    data = open(client.basedir / os.fsdecode(fn), 'rb').read()
+    upload = b'stress%d_%b.ul' % (i, fn)
+    with client.newSocket() as sock:
+        pkt, ca = exchange(client, sock, client.createRequest(OP.WRQ, upload), client.remote)
+        client.checkACK(pkt['op'], pkt['bn'] != 0)
+
+        # The last block is short, empty if the size is a multiple of 512
+        for blk in range(1, len(data) // 512 + 2):
+            req = client.createDATBuf(data[(blk - 1) * 512:blk * 512], blk)
+            pkt, ca = exchange(client, sock, req, ca)
+            # The ACK of the previous block again means the block got lost
+            while pkt['op'] == OP.ACK and pkt['bn'] == blk - 1:
+                pkt, ca = exchange(client, sock, req, ca)
+            client.checkACK(pkt['op'], pkt['bn'] != blk)
+
+    try:
+        if not client.fileBufEq(upload, data):
+            raise ValueError(f'{upload} is not the same.')
+    finally:
+        os.remove(client.basedir / os.fsdecode(upload))
+
+    return True
+
+
+# Get and put the genfiles.sh files hundreds of times at once
+def test_ConcurrentGetPut(client):
+    with ThreadPoolExecutor(max_workers=2 * TRANSFERS) as pool:
+        results = [pool.submit(get, client, FIXTURES[i % len(FIXTURES)])
+                   for i in range(TRANSFERS)]
+        results += [pool.submit(put, client, FIXTURES[i % len(FIXTURES)], i)
+                    for i in range(TRANSFERS)]
+
+        assert all(r.result() for r in results)
@@ -0,0 +1,61 @@
+import pytest
+import os
+import struct
+
+from tftpclient import OP
+
+WINDOW = 64
+OACK = 6
+# The block the client pretends it never got, the first time it comes
+LOST = 5
+
+
+# Init client
+@pytest.fixture(scope="module")
+def client():
+    import tftpclient
+    return tftpclient.TFTPClient(('localhost', 9000), os.getcwd() + '/tftpserverdir')
+
+
+# Read f512blks.bin with a window, losing one block. Like many clients, this one
+# repeats the ACK of the last block in order for every block out of order. The
+# server must send the window again once, not once per repeated ACK.
+def test_GMB512WindowLost(client):
+    fn = b'f512blks.bin'
+    request = struct.pack('!H', OP.RRQ.value) + b'%b\x00octet\x00windowsize\x00%d\x00' % (fn, WINDOW)
+    buf = b''
+    sent = 0
+    with client.newSocket() as sock:
+        sock.sendto(request, client.remote)
+        resp, ca = sock.recvfrom(1024)
+        assert struct.unpack('!H', resp[0:2])[0] == OACK
+        sock.sendto(client.createACK(0), ca)
+
+        lost = False
+        ebn = 1
+        in_window = 0
+        while True:
+            resp, ca = sock.recvfrom(1024)
+            pkt = client.parsePacket(resp)
+            assert pkt['op'] == OP.DAT
+            sent += 1
+            if pkt['bn'] == LOST and not lost:
+                lost = True
+                continue
+            if pkt['bn'] != ebn & 0xffff:
+                sock.sendto(client.createACK((ebn - 1) & 0xffff), ca)
+                in_window = 0
+                continue
+            buf += pkt['data']
+            ebn += 1
+            in_window += 1
+            if len(pkt['data']) < 512:
+                sock.sendto(client.createACK(pkt['bn']), ca)
+                break
+            if in_window == WINDOW:
+                sock.sendto(client.createACK(pkt['bn']), ca)
+                in_window = 0
+
+    assert buf == open(client.basedir / os.fsdecode(fn), 'rb').read()
+    # 513 blocks, and at most a window twice over for the lost one
+    assert sent <= 513 + 2 * WINDOW